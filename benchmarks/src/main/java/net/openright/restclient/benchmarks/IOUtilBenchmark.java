@@ -0,0 +1,54 @@
+package net.openright.restclient.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.openright.restclient.util.IOUtil;
+
+/**
+ * Body reading in isolation. Compare the two with <code>-prof gc</code> to see
+ * the allocations saved by presizing from <code>Content-Length</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IOUtilBenchmark {
+
+    @Param({ "100", "10000", "1000000" })
+    int payloadSize;
+
+    private String content;
+
+    @Setup
+    public void setup() {
+        content = new String(LocalServer.text(payloadSize), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String toStringUnknownLength() throws IOException {
+        return IOUtil.toString(new StringReader(content));
+    }
+
+    @Benchmark
+    public String toStringPresized() throws IOException {
+        return IOUtil.toString(new StringReader(content), content.length());
+    }
+
+}
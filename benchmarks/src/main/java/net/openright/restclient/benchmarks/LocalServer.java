@@ -0,0 +1,83 @@
+package net.openright.restclient.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process HTTP server with fixed responses of a given size, so the
+ * benchmarks measure the client rather than the network or the backend.
+ */
+public class LocalServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    public LocalServer(int payloadSize) throws IOException {
+        byte[] text = text(payloadSize);
+        byte[] json = json(payloadSize);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/text", exchange -> respond(exchange, 200, "text/plain; charset=UTF-8", text));
+        server.createContext("/json", exchange -> respond(exchange, 200, "application/json", json));
+        server.createContext("/echo", exchange -> {
+            drain(exchange.getRequestBody());
+            respond(exchange, 200, "text/plain; charset=UTF-8", "ok".getBytes(StandardCharsets.UTF_8));
+        });
+        server.createContext("/error", exchange -> respond(exchange, 500, "text/plain; charset=UTF-8", text));
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static byte[] text(int size) {
+        StringBuilder result = new StringBuilder(size);
+        while (result.length() < size) {
+            result.append((char) ('a' + result.length() % 26));
+        }
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] json(int size) {
+        StringBuilder result = new StringBuilder(size + 64).append('[');
+        for (int i = 0; result.length() < size; i++) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\",\"active\":true}");
+        }
+        return result.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int responseCode, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(responseCode, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        while (in.read(buffer) != -1) {
+        }
+        in.close();
+    }
+
+}
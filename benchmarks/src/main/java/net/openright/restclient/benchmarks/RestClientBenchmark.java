@@ -0,0 +1,103 @@
+package net.openright.restclient.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.openright.restclient.RestClient;
+import net.openright.restclient.RestHttpException;
+import net.openright.restclient.transport.HttpClientTransport;
+import net.openright.restclient.transport.RestTransport;
+import net.openright.restclient.transport.UrlConnectionTransport;
+
+/**
+ * The full request path through {@link RestClient} against a local server.
+ * Run with <code>-t</code> to vary the number of threads, and with
+ * <code>-prof gc</code> to report allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RestClientBenchmark {
+
+    @Param({ "100", "10000", "1000000" })
+    int payloadSize;
+
+    @Param({ "urlconnection", "httpclient" })
+    String transport;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private LocalServer server;
+    private RestClient restClient;
+    private String requestPayload;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = new LocalServer(payloadSize);
+        restClient = new RestClient("benchmark", server.getUrl(), new MetricRegistry(), createTransport());
+        requestPayload = new String(LocalServer.text(payloadSize), StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public String getString() throws IOException {
+        return restClient.getString("/text");
+    }
+
+    @Benchmark
+    public Optional<JsonNode> getJson() {
+        return restClient.get("/json", mapper::readTree);
+    }
+
+    @Benchmark
+    public Optional<String> postString() throws IOException {
+        return restClient.postString("/echo", requestPayload);
+    }
+
+    @Benchmark
+    public String getError() throws IOException {
+        try {
+            return restClient.getString("/error");
+        } catch (RestHttpException e) {
+            return e.getDetailText();
+        }
+    }
+
+    private RestTransport createTransport() {
+        switch (transport) {
+        case "urlconnection":
+            return new UrlConnectionTransport();
+        case "httpclient":
+            return new HttpClientTransport();
+        default:
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package net.openright.restclient;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Fetches many paths with a fixed number of workers on the client's executor. Each
+ * worker takes the next path until none are left, so no more than
+ * <code>parallelism</code> requests are in flight and no task is created per path.
+ */
+class Batch<T> {
+
+    private final String endpointName;
+    private final String endpointRoot;
+    private final String[] paths;
+    private final Function<String, Optional<T>> request;
+    private final AtomicInteger next = new AtomicInteger();
+    private final BlockingQueue<Object> completed = new LinkedBlockingQueue<>();
+    private volatile boolean cancelled;
+
+    Batch(String endpointName, String endpointRoot, Collection<String> paths, Function<String, Optional<T>> request) {
+        this.endpointName = endpointName;
+        this.endpointRoot = endpointRoot;
+        this.paths = paths.toArray(new String[0]);
+        this.request = request;
+    }
+
+    Batch<T> start(Executor executor, int parallelism) {
+        for (int i = 0; i < Math.min(parallelism, paths.length); i++) {
+            executor.execute(this::work);
+        }
+        return this;
+    }
+
+    private void work() {
+        int index;
+        while (!cancelled && (index = next.getAndIncrement()) < paths.length) {
+            try {
+                completed.add(new BatchResult<>(index, paths[index], request.apply(paths[index]), null));
+            } catch (RestException e) {
+                completed.add(new BatchResult<T>(index, paths[index], Optional.empty(), e));
+            } catch (RuntimeException | Error e) {
+                cancelled = true;
+                completed.add(e);
+            }
+        }
+    }
+
+    List<BatchResult<T>> toList() {
+        List<BatchResult<T>> results = new ArrayList<>(Collections.nCopies(paths.length, null));
+        Iterator<BatchResult<T>> iterator = iterator();
+        while (iterator.hasNext()) {
+            BatchResult<T> result = iterator.next();
+            results.set(result.getIndex(), result);
+        }
+        return results;
+    }
+
+    Stream<BatchResult<T>> stream() {
+        return StreamSupport.stream(Spliterators.spliterator(iterator(), paths.length, Spliterator.NONNULL), false)
+                .onClose(() -> cancelled = true);
+    }
+
+    private Iterator<BatchResult<T>> iterator() {
+        return new Iterator<BatchResult<T>>() {
+            private int remaining = paths.length;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public BatchResult<T> next() {
+                if (remaining == 0) {
+                    throw new NoSuchElementException();
+                }
+                Object result = take();
+                if (result instanceof RuntimeException) {
+                    throw (RuntimeException) result;
+                } else if (result instanceof Error) {
+                    throw (Error) result;
+                }
+                remaining--;
+                return (BatchResult<T>) result;
+            }
+        };
+    }
+
+    private Object take() {
+        try {
+            return completed.take();
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+            throw new RestIOException(endpointName, new InterruptedIOException(), endpointRoot);
+        }
+    }
+
+}
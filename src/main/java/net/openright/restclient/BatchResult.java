@@ -0,0 +1,50 @@
+package net.openright.restclient;
+
+import java.util.Optional;
+
+/** The outcome of fetching one path in {@link RestClient#getAll}: a value or the exception that request failed with */
+public class BatchResult<T> {
+
+    private final int index;
+    private final String path;
+    private final Optional<T> value;
+    private final RestException exception;
+
+    BatchResult(int index, String path, Optional<T> value, RestException exception) {
+        this.index = index;
+        this.path = path;
+        this.value = value;
+        this.exception = exception;
+    }
+
+    /** The position of the path in the collection given to the batch */
+    public int getIndex() {
+        return index;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isSuccessful() {
+        return exception == null;
+    }
+
+    /** The value, or throws the request's exception if it failed */
+    public Optional<T> get() {
+        if (exception != null) {
+            throw exception;
+        }
+        return value;
+    }
+
+    public RestException getException() {
+        return exception;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + path + (exception == null ? "" : ", " + exception) + "}";
+    }
+
+}
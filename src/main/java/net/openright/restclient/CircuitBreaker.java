@@ -0,0 +1,142 @@
+package net.openright.restclient;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * The state of the circuit breaker for one endpoint. Outcomes of the last calls
+ * are kept in a ring buffer, so updating the rates takes constant time.
+ * <p>
+ * Each change of state starts a new generation, and a permit is the generation it
+ * was granted in. A call that was let through while closed can finish after the
+ * breaker has opened or gone half-open, and its outcome is then ignored, so only
+ * the trial calls decide whether to close again.
+ */
+class CircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final long REJECTED = -1;
+
+    private final CircuitBreakerPolicy policy;
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long generation;
+    private long openedAt;
+    private int trialPermits;
+    private int trialSuccesses;
+
+    private final Meter opened;
+    private final Meter halfOpened;
+    private final Meter closed;
+    private final Meter rejected;
+
+    CircuitBreaker(CircuitBreakerPolicy policy, MetricRegistry metrics, String metricPrefix) {
+        this.policy = policy;
+        this.failed = new boolean[policy.windowSize];
+        this.slow = new boolean[policy.windowSize];
+        this.opened = metrics.meter(MetricRegistry.name(metricPrefix, "opened"));
+        this.halfOpened = metrics.meter(MetricRegistry.name(metricPrefix, "halfOpened"));
+        this.closed = metrics.meter(MetricRegistry.name(metricPrefix, "closed"));
+        this.rejected = metrics.meter(MetricRegistry.name(metricPrefix, "rejected"));
+        String stateName = MetricRegistry.name(metricPrefix, "state");
+        metrics.remove(stateName);
+        metrics.register(stateName, (Gauge<Integer>) () -> getState().ordinal());
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * A permit for a call to go ahead, or {@link #REJECTED}. Each permitted call must be
+     * followed by {@link #onResult} or {@link #onCancelled} with the permit.
+     */
+    synchronized long tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < policy.openNanos) {
+                rejected.mark();
+                return REJECTED;
+            }
+            changeState(State.HALF_OPEN);
+            trialPermits = policy.halfOpenCalls;
+            trialSuccesses = 0;
+            halfOpened.mark();
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialPermits == 0) {
+                rejected.mark();
+                return REJECTED;
+            }
+            trialPermits--;
+        }
+        return generation;
+    }
+
+    /** A cancelled call says nothing about the endpoint, so it only gives back its trial permit */
+    synchronized void onCancelled(long permit) {
+        if (permit == generation && state == State.HALF_OPEN) {
+            trialPermits++;
+        }
+    }
+
+    synchronized void onResult(long permit, boolean failure, long durationNanos) {
+        if (permit != generation) {
+            return;
+        }
+        boolean slowCall = durationNanos >= policy.slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            if (failure || slowCall) {
+                open();
+            } else if (++trialSuccesses >= policy.halfOpenCalls) {
+                changeState(State.CLOSED);
+                clearWindow();
+                closed.mark();
+            }
+        } else if (state == State.CLOSED) {
+            record(failure, slowCall);
+            if (calls >= policy.minimumCalls
+                    && (failures >= policy.failureRateThreshold * calls || slowCalls >= policy.slowCallRateThreshold * calls)) {
+                open();
+            }
+        }
+    }
+
+    private void record(boolean failure, boolean slowCall) {
+        if (calls == failed.length) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failed[next] = failure;
+        slow[next] = slowCall;
+        failures += failure ? 1 : 0;
+        slowCalls += slowCall ? 1 : 0;
+        next = (next + 1) % failed.length;
+    }
+
+    private void open() {
+        changeState(State.OPEN);
+        openedAt = System.nanoTime();
+        clearWindow();
+        opened.mark();
+    }
+
+    private void changeState(State state) {
+        this.state = state;
+        generation++;
+    }
+
+    private void clearWindow() {
+        next = calls = failures = slowCalls = 0;
+    }
+
+}
@@ -0,0 +1,90 @@
+package net.openright.restclient;
+
+import java.time.Duration;
+
+/**
+ * When a {@link RestClient} should stop calling an endpoint. The breaker opens when,
+ * among the last {@link Builder#window(int, int) window} calls, the share of failures
+ * or of slow calls reaches its threshold. Failures are I/O errors and 5xx responses.
+ * While open, calls fail with {@link CircuitOpenException}. After
+ * {@link Builder#openDuration(Duration) openDuration} a few trial calls are let
+ * through; if they all succeed the breaker closes, otherwise it opens again.
+ */
+public class CircuitBreakerPolicy {
+
+    final double failureRateThreshold;
+    final double slowCallRateThreshold;
+    final long slowCallNanos;
+    final int windowSize;
+    final int minimumCalls;
+    final long openNanos;
+    final int halfOpenCalls;
+
+    private CircuitBreakerPolicy(Builder builder) {
+        this.failureRateThreshold = builder.failureRateThreshold;
+        this.slowCallRateThreshold = builder.slowCallRateThreshold;
+        this.slowCallNanos = builder.slowCallDuration.toNanos();
+        this.windowSize = builder.windowSize;
+        this.minimumCalls = builder.minimumCalls;
+        this.openNanos = builder.openDuration.toNanos();
+        this.halfOpenCalls = builder.halfOpenCalls;
+    }
+
+    public static CircuitBreakerPolicy defaults() {
+        return builder().build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private double failureRateThreshold = 0.5;
+        private double slowCallRateThreshold = 1.0;
+        private Duration slowCallDuration = Duration.ofSeconds(10);
+        private int windowSize = 100;
+        private int minimumCalls = 20;
+        private Duration openDuration = Duration.ofSeconds(30);
+        private int halfOpenCalls = 5;
+
+        private Builder() {
+        }
+
+        /** Opens the breaker when this share of the calls in the window fail. Defaults to 0.5 */
+        public Builder failureRateThreshold(double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        /** Opens the breaker when this share of the calls in the window take longer than <code>slowCallDuration</code> */
+        public Builder slowCallRateThreshold(double slowCallRateThreshold, Duration slowCallDuration) {
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            this.slowCallDuration = slowCallDuration;
+            return this;
+        }
+
+        /** Rates are computed over the last <code>size</code> calls, once at least <code>minimumCalls</code> are made */
+        public Builder window(int size, int minimumCalls) {
+            this.windowSize = size;
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        public Builder openDuration(Duration openDuration) {
+            this.openDuration = openDuration;
+            return this;
+        }
+
+        /** The number of trial calls that must succeed to close the breaker again */
+        public Builder halfOpenCalls(int halfOpenCalls) {
+            this.halfOpenCalls = halfOpenCalls;
+            return this;
+        }
+
+        public CircuitBreakerPolicy build() {
+            return new CircuitBreakerPolicy(this);
+        }
+    }
+
+}
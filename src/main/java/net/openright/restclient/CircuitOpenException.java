@@ -0,0 +1,10 @@
+package net.openright.restclient;
+
+/** Thrown without contacting the server while the endpoint's circuit breaker is open */
+public class CircuitOpenException extends RestException {
+
+    public CircuitOpenException(String endpointName, String url) {
+        super(endpointName, "Circuit breaker for " + endpointName + " is open", url);
+    }
+
+}
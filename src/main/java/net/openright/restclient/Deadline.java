@@ -0,0 +1,127 @@
+package net.openright.restclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * The time by which a call must be done. Every {@link RestClient} request made by a
+ * thread while the deadline is {@link #enter() entered} must finish before it,
+ * including the reading of the response, or it fails with {@link RestTimeoutException}.
+ * Asynchronous and batch requests carry the deadline of the thread that started them.
+ *
+ * <pre>
+ * try (Deadline.Scope scope = Deadline.after(Duration.ofSeconds(2)).enter()) {
+ *     restClient.get("/orders", reader -> ...);
+ *     restClient.get("/customers", reader -> ...);
+ * }
+ * </pre>
+ */
+public class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long nanoTime;
+
+    private Deadline(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    public static Deadline after(Duration timeout) {
+        return new Deadline(System.nanoTime() + timeout.toNanos());
+    }
+
+    /** The deadline entered by the current thread, if any */
+    public static Optional<Deadline> current() {
+        return Optional.ofNullable(CURRENT.get());
+    }
+
+    /** The time left, or zero if the deadline has passed */
+    public Duration remaining() {
+        return Duration.ofNanos(Math.max(0, remainingNanos()));
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+
+    long remainingNanos() {
+        return nanoTime - System.nanoTime();
+    }
+
+    /** The time left in whole milliseconds, rounded up so that it's 0 only when the deadline has passed */
+    long remainingMillis() {
+        long nanos = remainingNanos();
+        return nanos <= 0 ? 0 : (nanos + 999_999) / 1_000_000;
+    }
+
+    /** Whichever of the deadlines comes first. Either may be null */
+    static Deadline earliest(Deadline a, Deadline b) {
+        if (a == null || b == null) {
+            return a != null ? a : b;
+        }
+        return a.nanoTime - b.nanoTime <= 0 ? a : b;
+    }
+
+    /**
+     * Makes this the deadline of the current thread until the scope is closed. An
+     * earlier deadline that is already entered stays in force.
+     */
+    public Scope enter() {
+        return enter(this);
+    }
+
+    /** Enters the deadline, if there is one. Used to carry a deadline over to another thread */
+    static Scope enter(Deadline deadline) {
+        Deadline previous = CURRENT.get();
+        Deadline next = earliest(previous, deadline);
+        if (next != null) {
+            CURRENT.set(next);
+        }
+        return new Scope(previous);
+    }
+
+    /** Fails reads with {@link SocketTimeoutException} once the deadline has passed */
+    InputStream guard(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                check();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                check();
+                return super.read(b, off, len);
+            }
+        };
+    }
+
+    void check() throws SocketTimeoutException {
+        if (isExpired()) {
+            throw new SocketTimeoutException("Deadline exceeded");
+        }
+    }
+
+    public static class Scope implements AutoCloseable {
+        private final Deadline previous;
+
+        private Scope(Deadline previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,296 @@
+package net.openright.restclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import com.codahale.metrics.Meter;
+
+import net.openright.restclient.RestClient.BodyReader;
+import net.openright.restclient.transport.RequestHeaders;
+import net.openright.restclient.transport.RestResponse;
+
+/**
+ * Saves a response to a file through a {@link FileChannel}. When the server accepts
+ * byte ranges, the file is fetched in chunks by a fixed number of workers on the
+ * client's executor, each writing its chunks at their position in the file.
+ * <p>
+ * The body goes to <code>target.part</code> and is moved to the target when complete.
+ * Next to it, <code>target.part.progress</code> holds the length and validator
+ * (ETag or Last-Modified) of the response, the chunk size and the offsets of the
+ * chunks that are written, so an interrupted download continues with the missing
+ * chunks if the response and the chunk size are unchanged.
+ * <p>
+ * Requests are sent with <code>Cache-Control: no-store</code>, so the caching and
+ * coalescing transports stream the body instead of buffering it in memory.
+ */
+class Download {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final RequestHeaders HEADERS = RequestHeaders.of("Accept-Encoding", "identity").with("Cache-Control", "no-store");
+
+    private final RestClient client;
+    private final String endpointName;
+    private final String url;
+    private final String path;
+    private final Path target;
+    private final Path partial;
+    private final Path progress;
+    private final int connections;
+    private final long chunkBytes;
+    private final Meter bytes;
+    private final Meter chunks;
+    private final Meter resumed;
+    private volatile boolean failed;
+
+    Download(RestClient client, String endpointName, String url, String path, Path target,
+            int connections, long chunkBytes, Meter bytes, Meter chunks, Meter resumed) {
+        this.client = client;
+        this.endpointName = endpointName;
+        this.url = url;
+        this.path = path;
+        this.target = target;
+        this.partial = target.resolveSibling(target.getFileName() + ".part");
+        this.progress = target.resolveSibling(target.getFileName() + ".part.progress");
+        this.connections = connections;
+        this.chunkBytes = chunkBytes;
+        this.bytes = bytes;
+        this.chunks = chunks;
+        this.resumed = resumed;
+    }
+
+    /** The length, validator and range support that the server reports for the resource */
+    private static class Resource {
+        final long length;
+        final String validator;
+        final boolean acceptsRanges;
+
+        Resource(long length, String validator, boolean acceptsRanges) {
+            this.length = length;
+            this.validator = validator;
+            this.acceptsRanges = acceptsRanges;
+        }
+
+        boolean canResume() {
+            return acceptsRanges && validator != null;
+        }
+    }
+
+    long run() {
+        try {
+            Resource resource = head();
+            if (resource.acceptsRanges && resource.length > chunkBytes && connections > 1) {
+                fetchChunks(resource);
+            } else {
+                fetchWhole(resource);
+            }
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(progress);
+            return Files.size(target);
+        } catch (IOException e) {
+            throw new RestIOException(endpointName, e, url);
+        }
+    }
+
+    private Resource head() {
+        try {
+            return client.execute("HEAD", path, HEADERS, null, (response, body) -> {
+                String etag = response.getHeaderField("ETag");
+                String validator = etag != null && !etag.startsWith("W/") ? etag : response.getHeaderField("Last-Modified");
+                return new Resource(response.getContentLength(), validator, "bytes".equalsIgnoreCase(response.getHeaderField("Accept-Ranges")));
+            }).orElse(new Resource(-1, null, false));
+        } catch (RestHttpException e) {
+            return new Resource(-1, null, false);
+        }
+    }
+
+    /** One request for the rest of the body, continuing after what's in the partial file if the server allows */
+    private void fetchWhole(Resource resource) throws IOException {
+        Set<Long> done = resource.canResume() ? readProgress(resource) : null;
+        long position = done != null && done.isEmpty() && Files.exists(partial) ? Files.size(partial) : 0;
+        RequestHeaders headers = HEADERS;
+        if (position > 0) {
+            headers = headers.with("Range", "bytes=" + position + "-").with("If-Range", resource.validator);
+        } else {
+            startOver(resource);
+        }
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            client.execute("GET", path, headers, null, unhedged((response, body) -> {
+                long start = response.getResponseCode() == 206 ? position : 0;
+                if (start > 0) {
+                    resumed.mark(start);
+                }
+                channel.truncate(start);
+                long written = write(body, channel, start);
+                if (resource.length >= 0 && start + written != resource.length) {
+                    throw new EOFException("Got " + (start + written) + " of " + resource.length + " bytes");
+                }
+                return written;
+            }));
+        }
+    }
+
+    private void fetchChunks(Resource resource) throws IOException {
+        Set<Long> done = resource.canResume() ? readProgress(resource) : null;
+        if (done == null || !Files.exists(partial)) {
+            done = new HashSet<>();
+            startOver(resource);
+        }
+        Queue<Long> pending = new ConcurrentLinkedQueue<>();
+        for (long offset = 0; offset < resource.length; offset += chunkBytes) {
+            if (done.contains(offset)) {
+                resumed.mark(Math.min(chunkBytes, resource.length - offset));
+            } else {
+                pending.add(offset);
+            }
+        }
+        Executor executor = client.getExecutor();
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            List<CompletableFuture<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(connections, pending.size()); i++) {
+                workers.add(CompletableFuture.runAsync(() -> work(pending, resource, channel), executor));
+            }
+            try {
+                CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void work(Queue<Long> pending, Resource resource, FileChannel channel) {
+        Long offset;
+        while (!failed && (offset = pending.poll()) != null) {
+            try {
+                fetchChunk(offset, resource, channel);
+            } catch (IOException e) {
+                failed = true;
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    private void fetchChunk(long offset, Resource resource, FileChannel channel) throws IOException {
+        long end = Math.min(offset + chunkBytes, resource.length) - 1;
+        RequestHeaders headers = HEADERS.with("Range", "bytes=" + offset + "-" + end);
+        if (resource.validator != null) {
+            headers = headers.with("If-Range", resource.validator);
+        }
+        client.execute("GET", path, headers, null, chunkReader(offset, end, channel));
+        chunks.mark();
+        if (resource.canResume()) {
+            channel.force(false);
+            appendProgress(offset);
+        }
+    }
+
+    private BodyReader<Long> chunkReader(long offset, long end, FileChannel channel) {
+        return unhedged((response, body) -> {
+            if (response.getResponseCode() != 206) {
+                throw new IOException("Expected 206 for bytes " + offset + "-" + end + ", got " + response.getResponseCode()
+                        + ". The resource may have changed during the download");
+            }
+            long written = write(body, channel, offset);
+            if (written != end - offset + 1) {
+                throw new EOFException("Got " + written + " of " + (end - offset + 1) + " bytes at " + offset);
+            }
+            return written;
+        });
+    }
+
+    /** A hedge would write to the same file, and cancelling it by interrupt would close the channel */
+    private static <T> BodyReader<T> unhedged(BodyReader<T> reader) {
+        return new BodyReader<T>() {
+            @Override
+            public T read(RestResponse response, InputStream body) throws IOException {
+                return reader.read(response, body);
+            }
+
+            @Override
+            public boolean canHedge() {
+                return false;
+            }
+        };
+    }
+
+    /** Positional writes, so chunks can be written in any order and retried from their start */
+    private long write(InputStream body, FileChannel channel, long position) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(body);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        long written = 0;
+        while (source.read(buffer) >= 0) {
+            buffer.flip();
+            int count = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer, position + written);
+            }
+            bytes.mark(count);
+            buffer.clear();
+        }
+        return written;
+    }
+
+    /** The offsets of the chunks already written, or null if the progress is for another version of the resource */
+    private Set<Long> readProgress(Resource resource) throws IOException {
+        if (!Files.exists(progress)) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(progress, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(progressHeader(resource))) {
+            return null;
+        }
+        Set<Long> done = new HashSet<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (!line.isEmpty()) {
+                done.add(Long.parseLong(line));
+            }
+        }
+        return done;
+    }
+
+    private void startOver(Resource resource) throws IOException {
+        Files.deleteIfExists(partial);
+        if (resource.canResume()) {
+            Files.write(progress, (progressHeader(resource) + "\n").getBytes(StandardCharsets.UTF_8));
+        } else {
+            Files.deleteIfExists(progress);
+        }
+    }
+
+    /** Chunks of another size would start at other offsets, so a progress file for another chunk size can't be used */
+    private String progressHeader(Resource resource) {
+        return resource.length + " " + chunkBytes + " " + resource.validator;
+    }
+
+    private synchronized void appendProgress(long offset) throws IOException {
+        Files.write(progress, (offset + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+}
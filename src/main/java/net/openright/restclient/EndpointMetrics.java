@@ -0,0 +1,221 @@
+package net.openright.restclient;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
+
+import net.openright.restclient.transport.RestResponse;
+
+/**
+ * The metrics of a single endpoint, all named under
+ * <code>net.openright.restclient.RestClient.&lt;endpointName&gt;</code>.
+ * Timers and histograms use the configured reservoir, or the registry's default
+ * when none is given.
+ */
+class EndpointMetrics {
+
+    final MetricRegistry registry;
+    final String endpointName;
+    private final Supplier<Reservoir> reservoir;
+
+    final Timer requests;
+    final Meter errors;
+    final Meter timeouts;
+    final Counter queued;
+    final Counter active;
+    final Histogram attempts;
+    final Meter retries;
+    final Meter retryBudgetExhausted;
+
+    final Timer connect;
+    final Timer firstByte;
+    final Timer transfer;
+    final Timer parse;
+    final Histogram bytesSent;
+    final Histogram bytesReceived;
+    private final Meter[] statusClasses = new Meter[5];
+    final Meter connectionsReused;
+    final Meter connectionsOpened;
+    final Meter downloadBytes;
+    final Meter downloadChunks;
+    final Meter downloadResumed;
+
+    EndpointMetrics(MetricRegistry registry, String endpointName, Supplier<Reservoir> reservoir) {
+        this.registry = registry;
+        this.endpointName = endpointName;
+        this.reservoir = reservoir;
+        this.requests = timer("requests");
+        this.errors = registry.meter(name("errors"));
+        this.timeouts = registry.meter(name("timeouts"));
+        this.queued = registry.counter(name("queued"));
+        this.active = registry.counter(name("active"));
+        this.attempts = histogram("attempts");
+        this.retries = registry.meter(name("retries"));
+        this.retryBudgetExhausted = registry.meter(name("retryBudgetExhausted"));
+        this.connect = timer("connect");
+        this.firstByte = timer("firstByte");
+        this.transfer = timer("transfer");
+        this.parse = timer("parse");
+        this.bytesSent = histogram("bytesSent");
+        this.bytesReceived = histogram("bytesReceived");
+        this.connectionsReused = registry.meter(name("connections", "reused"));
+        this.connectionsOpened = registry.meter(name("connections", "new"));
+        this.downloadBytes = registry.meter(name("download", "bytes"));
+        this.downloadChunks = registry.meter(name("download", "chunks"));
+        this.downloadResumed = registry.meter(name("download", "resumed"));
+        for (int i = 0; i < statusClasses.length; i++) {
+            statusClasses[i] = registry.meter(name("responses", (i + 1) + "xx"));
+        }
+    }
+
+    String name(String... names) {
+        return MetricRegistry.name(RestClient.class.getName(), prepend(endpointName, names));
+    }
+
+    /** Records what is known when the response headers have arrived */
+    void recordExchange(RestResponse response, long bytesSent) throws IOException {
+        if (response.getConnectNanos() >= 0) {
+            connect.update(response.getConnectNanos(), TimeUnit.NANOSECONDS);
+        }
+        if (response.getFirstByteNanos() >= 0) {
+            firstByte.update(response.getFirstByteNanos(), TimeUnit.NANOSECONDS);
+        }
+        if (bytesSent >= 0) {
+            this.bytesSent.update(bytesSent);
+        }
+        response.isConnectionReused().ifPresent(reused -> (reused ? connectionsReused : connectionsOpened).mark());
+        int statusClass = response.getResponseCode() / 100;
+        if (statusClass >= 1 && statusClass <= statusClasses.length) {
+            statusClasses[statusClass - 1].mark();
+        }
+    }
+
+    void recordBody(long bytesRead, long transferNanos, long parseNanos) {
+        bytesReceived.update(bytesRead);
+        transfer.update(transferNanos, TimeUnit.NANOSECONDS);
+        parse.update(parseNanos, TimeUnit.NANOSECONDS);
+    }
+
+    Meter getStatusClass(int statusClass) {
+        return statusClasses[statusClass - 1];
+    }
+
+    Timer timer(String... names) {
+        if (reservoir == null) {
+            return registry.timer(name(names));
+        }
+        return getOrRegister(name(names), new Timer(reservoir.get()));
+    }
+
+    /** Registers the gauge, replacing any gauge of an earlier client with the same name */
+    void gauge(String name, Gauge<?> gauge) {
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    private Histogram histogram(String metricName) {
+        if (reservoir == null) {
+            return registry.histogram(name(metricName));
+        }
+        return getOrRegister(name(metricName), new Histogram(reservoir.get()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Metric> T getOrRegister(String name, T metric) {
+        Metric existing = registry.getMetrics().get(name);
+        if (existing != null) {
+            return (T) existing;
+        }
+        try {
+            return registry.register(name, metric);
+        } catch (IllegalArgumentException e) {
+            return (T) registry.getMetrics().get(name);
+        }
+    }
+
+    /** Counts the bytes written for a request body whose length isn't known up front */
+    static class CountingBody implements RequestBody {
+        private final RequestBody body;
+        private long bytesWritten;
+
+        CountingBody(RequestBody body) {
+            this.body = body;
+        }
+
+        long getBytesWritten() {
+            return body.getContentLength() >= 0 ? body.getContentLength() : bytesWritten;
+        }
+
+        @Override
+        public long getContentLength() {
+            return body.getContentLength();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            body.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    bytesWritten++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    bytesWritten += len;
+                }
+            });
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return body.isRepeatable();
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            InputStream stream = body.openStream();
+            return stream == null ? null : new FilterInputStream(stream) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        bytesWritten++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int numBytesRead = super.read(b, off, len);
+                    if (numBytesRead > 0) {
+                        bytesWritten += numBytesRead;
+                    }
+                    return numBytesRead;
+                }
+            };
+        }
+    }
+
+    private static String[] prepend(String first, String[] rest) {
+        String[] result = new String[rest.length + 1];
+        result[0] = first;
+        System.arraycopy(rest, 0, result, 1, rest.length);
+        return result;
+    }
+
+}
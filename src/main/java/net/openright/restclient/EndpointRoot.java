@@ -0,0 +1,121 @@
+package net.openright.restclient;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** One of the base URLs of an endpoint, with the statistics used to pick between them */
+class EndpointRoot {
+
+    private final int index;
+    private final String root;
+    private final URL baseUrl;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile boolean ejected;
+
+    private double ewmaNanos;
+    private long ewmaUpdated = System.nanoTime();
+
+    EndpointRoot(int index, String root) {
+        this.index = index;
+        this.root = root;
+        try {
+            this.baseUrl = new URL(root);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid endpoint root " + root, e);
+        }
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    String getRoot() {
+        return root;
+    }
+
+    /** A name for the root that can be part of a metric name */
+    String getMetricName() {
+        return baseUrl.getAuthority();
+    }
+
+    /** Whether the URL has the same scheme, host and port as the root */
+    boolean isSameOrigin(URL url) {
+        return url.getProtocol().equalsIgnoreCase(baseUrl.getProtocol())
+                && url.getHost().equalsIgnoreCase(baseUrl.getHost())
+                && port(url) == port(baseUrl);
+    }
+
+    private static int port(URL url) {
+        return url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+    }
+
+    /** Resolves against the root parsed once. Paths often contain ids, so they're not worth caching */
+    URL resolve(String path) throws MalformedURLException {
+        return new URL(baseUrl, path);
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    boolean isEjected() {
+        return ejected;
+    }
+
+    void start() {
+        outstanding.incrementAndGet();
+    }
+
+    /** Records a cancelled request, which counts neither as a success nor as a failure */
+    void cancel() {
+        outstanding.decrementAndGet();
+    }
+
+    /** Records a completed request. Returns the number of consecutive I/O errors, including this one */
+    int complete(long nanos, boolean ioFailure, long ewmaDecayNanos) {
+        outstanding.decrementAndGet();
+        if (ewmaDecayNanos > 0) {
+            updateEwma(nanos, ewmaDecayNanos);
+        }
+        if (ioFailure) {
+            return consecutiveFailures.incrementAndGet();
+        }
+        consecutiveFailures.set(0);
+        return 0;
+    }
+
+    /** Marks the root as ejected. Returns false if it already was */
+    synchronized boolean eject() {
+        if (ejected) {
+            return false;
+        }
+        ejected = true;
+        return true;
+    }
+
+    synchronized void readmit() {
+        consecutiveFailures.set(0);
+        ejected = false;
+    }
+
+    synchronized double getPeakEwma() {
+        return ewmaNanos * (outstanding.get() + 1);
+    }
+
+    /** A slow response raises the average at once; fast responses bring it down gradually */
+    private synchronized void updateEwma(long nanos, long decayNanos) {
+        long now = System.nanoTime();
+        double weight = Math.exp(-(now - ewmaUpdated) / (double) decayNanos);
+        ewmaUpdated = now;
+        ewmaNanos = nanos > ewmaNanos ? nanos : ewmaNanos * weight + nanos * (1 - weight);
+    }
+
+    @Override
+    public String toString() {
+        return root;
+    }
+
+}
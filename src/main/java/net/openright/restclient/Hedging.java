@@ -0,0 +1,155 @@
+package net.openright.restclient;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import net.openright.restclient.transport.Cancellation;
+
+/**
+ * Runs a request and, if it is slower than the hedging delay, a second copy of it.
+ * The share of hedged requests is capped with the same kind of token bucket as retries.
+ * The percentile delay is read from the timer's snapshot at most once a second.
+ * The slower request is {@link Cancellation cancelled}, which closes its connection.
+ */
+class Hedging {
+
+    private static final long DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final HedgingPolicy policy;
+    private final Executor executor;
+    private final Timer requests;
+    private final Meter hedges;
+    private final Meter hedgesWon;
+    private final RetryBudget budget;
+
+    private volatile long delayNanos;
+    private volatile long delayUpdated = System.nanoTime() - DELAY_REFRESH_NANOS;
+
+    Hedging(HedgingPolicy policy, Executor executor, Timer requests, Meter hedges, Meter hedgesWon) {
+        this.policy = policy;
+        this.executor = executor;
+        this.requests = requests;
+        this.hedges = hedges;
+        this.hedgesWon = hedgesWon;
+        this.budget = new RetryBudget(policy.maxHedgeRatio, 1);
+        this.delayNanos = policy.delayNanos;
+    }
+
+    <T> T execute(Function<Cancellation, T> request, String endpointName, String url) {
+        budget.deposit();
+        Task<T> primary = new Task<>(request);
+        executor.execute(primary);
+        Task<T> hedge = null;
+        try {
+            try {
+                return primary.result.get(getDelayNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (!budget.tryWithdraw()) {
+                    return primary.result.get();
+                }
+            }
+            hedges.mark();
+            hedge = new Task<>(request);
+            executor.execute(hedge);
+            Task<T> winner = firstSuccess(primary, hedge).get();
+            if (winner == hedge) {
+                hedgesWon.mark();
+            }
+            return winner.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RestIOException(endpointName, new InterruptedIOException(), url);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw (Error) e.getCause();
+        } finally {
+            primary.cancel();
+            if (hedge != null) {
+                hedge.cancel();
+            }
+        }
+    }
+
+    private long getDelayNanos() {
+        if (policy.percentile > 0 && System.nanoTime() - delayUpdated >= DELAY_REFRESH_NANOS) {
+            delayUpdated = System.nanoTime();
+            if (requests.getCount() >= HedgingPolicy.MIN_SAMPLES) {
+                delayNanos = (long) requests.getSnapshot().getValue(policy.percentile);
+            }
+        }
+        return delayNanos;
+    }
+
+    /** Completes with the first task to succeed, or fails like the first task if both fail */
+    private static <T> CompletableFuture<Task<T>> firstSuccess(Task<T> first, Task<T> second) {
+        CompletableFuture<Task<T>> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (Task<T> task : List.of(first, second)) {
+            task.result.whenComplete((result, e) -> {
+                if (e == null) {
+                    winner.complete(task);
+                } else if (failures.incrementAndGet() == 2) {
+                    winner.complete(first);
+                }
+            });
+        }
+        return winner;
+    }
+
+    /** A request running on the executor, which is cancelled by closing its connection and interrupting its thread */
+    private static class Task<T> implements Runnable {
+        private final Function<Cancellation, T> request;
+        private final Cancellation cancellation = new Cancellation();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private Thread thread;
+
+        Task(Function<Cancellation, T> request) {
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                thread = Thread.currentThread();
+            }
+            try {
+                result.complete(request.apply(cancellation));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            if (result.isDone()) {
+                return;
+            }
+            cancellation.cancel();
+            if (thread != null) {
+                thread.interrupt();
+            } else {
+                result.cancel(false);
+            }
+        }
+    }
+
+}
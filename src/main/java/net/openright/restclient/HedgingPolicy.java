@@ -0,0 +1,67 @@
+package net.openright.restclient;
+
+import java.time.Duration;
+
+/**
+ * When a {@link RestClient} sends a second, identical GET because the first is slow.
+ * The hedge is sent after a fixed delay, or after the given percentile of the
+ * endpoint's observed <code>requests</code> timing once enough requests have been
+ * timed. Whichever response arrives first is used and the other request is cancelled.
+ * At most {@link Builder#maxHedgeRatio(double) maxHedgeRatio} of the requests are hedged.
+ */
+public class HedgingPolicy {
+
+    /** The number of timed requests needed before the percentile is trusted */
+    static final long MIN_SAMPLES = 100;
+
+    final long delayNanos;
+    final double percentile;
+    final double maxHedgeRatio;
+
+    private HedgingPolicy(Builder builder) {
+        this.delayNanos = builder.delay.toNanos();
+        this.percentile = builder.percentile;
+        this.maxHedgeRatio = builder.maxHedgeRatio;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private Duration delay = Duration.ofMillis(100);
+        private double percentile;
+        private double maxHedgeRatio = 0.05;
+
+        private Builder() {
+        }
+
+        /** Hedge requests that have not completed after this delay */
+        public Builder delay(Duration delay) {
+            this.delay = delay;
+            return this;
+        }
+
+        /**
+         * Hedge requests that are slower than this percentile (e.g. 0.95) of the observed
+         * request timing. The fixed {@link #delay(Duration) delay} is used until the
+         * endpoint has enough timings.
+         */
+        public Builder percentile(double percentile) {
+            this.percentile = percentile;
+            return this;
+        }
+
+        /** The largest share of requests that may be hedged. Defaults to 0.05 */
+        public Builder maxHedgeRatio(double maxHedgeRatio) {
+            this.maxHedgeRatio = maxHedgeRatio;
+            return this;
+        }
+
+        public HedgingPolicy build() {
+            return new HedgingPolicy(this);
+        }
+    }
+
+}
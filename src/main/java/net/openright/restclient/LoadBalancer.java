@@ -0,0 +1,168 @@
+package net.openright.restclient;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import net.openright.restclient.transport.RequestHeaders;
+import net.openright.restclient.transport.RestRequest;
+import net.openright.restclient.transport.RestResponse;
+import net.openright.restclient.transport.RestTransport;
+
+/**
+ * Picks the {@link EndpointRoot} for each request with the power of two choices, and
+ * ejects and probes roots that fail. With a single root, every request goes to it
+ * and no per-root metrics are registered.
+ */
+class LoadBalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadBalancer.class);
+
+    private static final ScheduledExecutorService PROBE_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rest-client-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final EndpointRoot[] roots;
+    private final LoadBalancingPolicy policy;
+    private final RestTransport transport;
+    private final Executor executor;
+    private final Timer[] requests;
+    private final Meter[] errors;
+    private final Meter[] ejections;
+
+    LoadBalancer(List<String> roots, LoadBalancingPolicy policy, RestTransport transport, Executor executor, EndpointMetrics metrics) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("No endpoint roots for " + metrics.endpointName);
+        }
+        this.roots = new EndpointRoot[roots.size()];
+        for (int i = 0; i < this.roots.length; i++) {
+            this.roots[i] = new EndpointRoot(i, roots.get(i));
+        }
+        this.policy = policy;
+        this.transport = transport;
+        this.executor = executor;
+        this.requests = new Timer[this.roots.length];
+        this.errors = new Meter[this.roots.length];
+        this.ejections = new Meter[this.roots.length];
+        if (this.roots.length > 1) {
+            for (int i = 0; i < this.roots.length; i++) {
+                EndpointRoot root = this.roots[i];
+                String name = root.getMetricName();
+                requests[i] = metrics.timer("roots", name, "requests");
+                errors[i] = metrics.registry.meter(metrics.name("roots", name, "errors"));
+                ejections[i] = metrics.registry.meter(metrics.name("roots", name, "ejections"));
+                metrics.gauge(metrics.name("roots", name, "outstanding"), root::getOutstanding);
+                metrics.gauge(metrics.name("roots", name, "ejected"), () -> root.isEjected() ? 1 : 0);
+            }
+            metrics.gauge(metrics.name("ejectedRoots"), this::getEjectedCount);
+        }
+    }
+
+    EndpointRoot getPrimary() {
+        return roots[0];
+    }
+
+    boolean isSameOrigin(URL url) {
+        for (EndpointRoot root : roots) {
+            if (root.isSameOrigin(url)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Picks a root and counts the request as outstanding. Must be followed by {@link #release} */
+    EndpointRoot select() {
+        EndpointRoot root = roots.length == 1 ? roots[0] : choose();
+        root.start();
+        return root;
+    }
+
+    void cancel(EndpointRoot root) {
+        root.cancel();
+    }
+
+    void release(EndpointRoot root, long nanos, boolean ioFailure, boolean error) {
+        int failures = root.complete(nanos, ioFailure, policy.ewmaDecayNanos);
+        if (roots.length == 1) {
+            return;
+        }
+        int index = root.getIndex();
+        requests[index].update(nanos, TimeUnit.NANOSECONDS);
+        if (error) {
+            errors[index].mark();
+        }
+        if (failures >= policy.ejectAfterFailures && root.eject()) {
+            log.warn("Ejecting {} after {} consecutive failures", root, failures);
+            ejections[index].mark();
+            scheduleProbe(root);
+        }
+    }
+
+    private EndpointRoot choose() {
+        List<EndpointRoot> candidates = new ArrayList<>(roots.length);
+        for (EndpointRoot root : roots) {
+            if (!root.isEjected()) {
+                candidates.add(root);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates = List.of(roots);
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        EndpointRoot a = candidates.get(first), b = candidates.get(second);
+        return cost(a) <= cost(b) ? a : b;
+    }
+
+    private double cost(EndpointRoot root) {
+        return policy.isPeakEwma() ? root.getPeakEwma() : root.getOutstanding();
+    }
+
+    private void scheduleProbe(EndpointRoot root) {
+        PROBE_SCHEDULER.schedule(() -> executor.execute(() -> probe(root)), policy.probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe(EndpointRoot root) {
+        int timeout = (int) Math.min(Integer.MAX_VALUE, Math.max(1, policy.probeIntervalMillis));
+        try (RestResponse response = transport.execute(new RestRequest("GET", root.resolve(policy.probePath), RequestHeaders.empty(), null)
+                .withTimeouts(timeout, timeout))) {
+            log.info("Readmitting {} after probe returned {}", root, response.getResponseCode());
+            root.readmit();
+        } catch (Exception e) {
+            log.debug("Probe of {} failed: {}", root, e.toString());
+            scheduleProbe(root);
+        }
+    }
+
+    private int getEjectedCount() {
+        int count = 0;
+        for (EndpointRoot root : roots) {
+            if (root.isEjected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,77 @@
+package net.openright.restclient;
+
+import java.time.Duration;
+
+/**
+ * How a {@link RestClient} with several endpoint roots picks the root for each request.
+ * Two roots are sampled at random and the one with the lowest cost is used. With
+ * {@link #leastOutstanding()} the cost is the number of requests in flight; with
+ * {@link #peakEwma(Duration)} it's the decaying, peak-sensitive average latency
+ * multiplied by the requests in flight. A root that fails with consecutive I/O errors
+ * is ejected and probed in the background until it answers again.
+ */
+public class LoadBalancingPolicy {
+
+    final long ewmaDecayNanos;
+    final int ejectAfterFailures;
+    final String probePath;
+    final long probeIntervalMillis;
+
+    private LoadBalancingPolicy(Builder builder) {
+        this.ewmaDecayNanos = builder.ewmaDecay != null ? builder.ewmaDecay.toNanos() : 0;
+        this.ejectAfterFailures = builder.ejectAfterFailures;
+        this.probePath = builder.probePath;
+        this.probeIntervalMillis = builder.probeInterval.toMillis();
+    }
+
+    boolean isPeakEwma() {
+        return ewmaDecayNanos > 0;
+    }
+
+    public static LoadBalancingPolicy leastOutstanding() {
+        return builder().build();
+    }
+
+    /** Picks roots by latency, where the weight of older observations decays with the time constant <code>decay</code> */
+    public static LoadBalancingPolicy peakEwma(Duration decay) {
+        return builder().peakEwma(decay).build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private Duration ewmaDecay;
+        private int ejectAfterFailures = 5;
+        private String probePath = "";
+        private Duration probeInterval = Duration.ofSeconds(10);
+
+        private Builder() {
+        }
+
+        public Builder peakEwma(Duration decay) {
+            this.ewmaDecay = decay;
+            return this;
+        }
+
+        /** Ejects a root after this many consecutive I/O errors. Defaults to 5 */
+        public Builder ejectAfterFailures(int ejectAfterFailures) {
+            this.ejectAfterFailures = ejectAfterFailures;
+            return this;
+        }
+
+        /** While a root is ejected, a GET to <code>path</code> is sent every <code>interval</code> until any response arrives */
+        public Builder probe(String path, Duration interval) {
+            this.probePath = path;
+            this.probeInterval = interval;
+            return this;
+        }
+
+        public LoadBalancingPolicy build() {
+            return new LoadBalancingPolicy(this);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package net.openright.restclient;
+
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Iterates over the items of all pages. With prefetch, a task on the client's executor
+ * fetches pages ahead into a queue bounded by the prefetch depth, so the next page is
+ * usually there when the current one is consumed. Failures are delivered in order,
+ * after the pages that were fetched before them.
+ */
+class PageIterator<T> implements Iterator<T>, AutoCloseable {
+
+    static class Page<T> {
+        final Collection<T> items;
+        final String nextPath;
+
+        Page(Collection<T> items, String nextPath) {
+            this.items = items;
+            this.nextPath = nextPath;
+        }
+    }
+
+    private static final Object END = new Object();
+
+    private final String endpointName;
+    private final Function<String, Page<T>> fetch;
+    private final BlockingQueue<Object> prefetched;
+    private volatile boolean closed;
+
+    private String nextPath;
+    private Iterator<T> items = Collections.emptyIterator();
+    private boolean ended;
+
+    PageIterator(String endpointName, String path, Function<String, Page<T>> fetch, int prefetch, Executor executor) {
+        this.endpointName = endpointName;
+        this.fetch = fetch;
+        this.nextPath = path;
+        if (prefetch > 0) {
+            this.prefetched = new ArrayBlockingQueue<>(prefetch);
+            executor.execute(this::prefetch);
+        } else {
+            this.prefetched = null;
+        }
+    }
+
+    private void prefetch() {
+        String path = nextPath;
+        try {
+            while (path != null && !closed) {
+                Page<T> page = fetch.apply(path);
+                if (!offer(page)) {
+                    return;
+                }
+                path = page.nextPath;
+            }
+            offer(END);
+        } catch (RuntimeException e) {
+            offer(e);
+        }
+    }
+
+    /** Waits for room in the queue, giving up if the iterator is closed */
+    private boolean offer(Object element) {
+        try {
+            while (!closed) {
+                if (prefetched.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!items.hasNext() && !ended) {
+            Page<T> page = nextPage();
+            if (page == null) {
+                ended = true;
+            } else {
+                items = page.items.iterator();
+            }
+        }
+        return items.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return items.next();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Page<T> nextPage() {
+        if (prefetched == null) {
+            if (nextPath == null) {
+                return null;
+            }
+            Page<T> page = fetch.apply(nextPath);
+            nextPath = page.nextPath;
+            return page;
+        }
+        Object element;
+        try {
+            element = prefetched.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RestIOException(endpointName, new InterruptedIOException(), nextPath);
+        }
+        if (element == END) {
+            return null;
+        } else if (element instanceof RuntimeException) {
+            ended = true;
+            throw (RuntimeException) element;
+        }
+        return (Page<T>) element;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (prefetched != null) {
+            prefetched.clear();
+        }
+    }
+
+}
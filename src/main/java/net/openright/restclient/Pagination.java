@@ -0,0 +1,86 @@
+package net.openright.restclient;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.openright.restclient.transport.RestResponse;
+import net.openright.restclient.util.IOUtil;
+
+/**
+ * How {@link RestClient#getPages} reads a page and finds the next one: from the
+ * <code>Link</code> header with <code>rel="next"</code>, or from the page itself.
+ * While the items of one page are consumed, up to {@link #prefetch(int)} following
+ * pages are fetched in the background.
+ * <p>
+ * A next page on another scheme, host or port than the endpoint's roots ends the
+ * stream with a {@link RestIOException}, as the client's headers may hold credentials.
+ */
+public class Pagination<P, T> {
+
+    private static final Pattern LINK = Pattern.compile("<([^>]*)>([^<]*)");
+    private static final Pattern REL_NEXT = Pattern.compile(";\\s*rel\\s*=\\s*\"?([^\";,]*\\s)?next[\\s\"]*(;|,|$)");
+
+    final IOUtil.ReadingFunction<P> pageReader;
+    final Function<P, ? extends Collection<T>> items;
+    final Function<P, String> nextPath;
+    final int prefetch;
+
+    private Pagination(IOUtil.ReadingFunction<P> pageReader, Function<P, ? extends Collection<T>> items, Function<P, String> nextPath, int prefetch) {
+        this.pageReader = pageReader;
+        this.items = items;
+        this.nextPath = nextPath;
+        this.prefetch = prefetch;
+    }
+
+    /** Pages where each body is a list of items, and the next page is given by the <code>Link</code> header */
+    public static <T> Pagination<List<T>, T> linkHeader(IOUtil.ReadingFunction<List<T>> pageReader) {
+        return new Pagination<>(pageReader, Function.identity(), null, 1);
+    }
+
+    /**
+     * Pages where the body tells where to go next, e.g. with a cursor field. <code>nextPath</code>
+     * returns the path or URL of the next page, or null after the last page.
+     */
+    public static <P, T> Pagination<P, T> cursor(IOUtil.ReadingFunction<P> pageReader,
+            Function<P, ? extends Collection<T>> items, Function<P, String> nextPath) {
+        return new Pagination<>(pageReader, items, nextPath, 1);
+    }
+
+    /** The number of pages to fetch ahead in the background. 0 fetches each page when it's needed. Defaults to 1 */
+    public Pagination<P, T> prefetch(int pages) {
+        return new Pagination<>(pageReader, items, nextPath, pages);
+    }
+
+    String getNextPath(RestResponse response, P page) throws MalformedURLException {
+        return nextPath != null ? nextPath.apply(page) : nextLink(response);
+    }
+
+    /** The absolute URL of the <code>rel="next"</code> link in the <code>Link</code> header, if any */
+    static String nextLink(RestResponse response) throws MalformedURLException {
+        String header = response.getHeaderField("Link");
+        if (header == null) {
+            return null;
+        }
+        Matcher link = LINK.matcher(header);
+        while (link.find()) {
+            if (REL_NEXT.matcher(link.group(2)).find()) {
+                return resolve(response.getURL(), link.group(1).trim());
+            }
+        }
+        return null;
+    }
+
+    /** Like {@link URL#URL(URL, String)}, but keeps the path for query-only references, as RFC 3986 says */
+    private static String resolve(URL base, String reference) throws MalformedURLException {
+        if (reference.startsWith("?")) {
+            return new URL(base, base.getPath() + reference).toString();
+        }
+        return new URL(base, reference).toString();
+    }
+
+}
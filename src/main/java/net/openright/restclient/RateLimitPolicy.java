@@ -0,0 +1,96 @@
+package net.openright.restclient;
+
+import java.time.Duration;
+
+/**
+ * How many requests per second a {@link RestClient} sends to an endpoint. Requests
+ * beyond the rate wait for their turn, up to {@link Builder#maxWait(Duration) maxWait},
+ * or fail with {@link RateLimitedException}. The rate adapts to the server: a 429 or
+ * 503 response cuts it by {@link Builder#decrease(double) decrease}, and a
+ * <code>Retry-After</code> header pauses all requests until then. Successful requests
+ * raise it again, by about {@link Builder#increase(double) increase} permits per second
+ * each second while requests are sent at the limit, up to the configured rate.
+ */
+public class RateLimitPolicy {
+
+    final double maxRate;
+    final double minRate;
+    final int burst;
+    final long maxWaitNanos;
+    final double increase;
+    final double decrease;
+
+    private RateLimitPolicy(Builder builder) {
+        this.maxRate = builder.rate;
+        this.minRate = Math.min(builder.minRate, builder.rate);
+        this.burst = builder.burst;
+        this.maxWaitNanos = builder.maxWait.toNanos();
+        this.increase = builder.increase;
+        this.decrease = builder.decrease;
+    }
+
+    /** At most <code>permitsPerSecond</code> requests per second, with defaults for the rest */
+    public static RateLimitPolicy of(double permitsPerSecond) {
+        return builder(permitsPerSecond).build();
+    }
+
+    public static Builder builder(double permitsPerSecond) {
+        return new Builder(permitsPerSecond);
+    }
+
+    public static class Builder {
+
+        private final double rate;
+        private double minRate;
+        private int burst = 1;
+        private Duration maxWait = Duration.ofSeconds(30);
+        private double increase;
+        private double decrease = 0.5;
+
+        private Builder(double rate) {
+            this.rate = rate;
+            this.minRate = rate / 100;
+            this.increase = Math.max(1, rate / 20);
+        }
+
+        /** The number of requests that may go at once after a quiet period. Defaults to 1 */
+        public Builder burst(int burst) {
+            this.burst = burst;
+            return this;
+        }
+
+        /** How long a request may wait for its turn. {@link Duration#ZERO} fails fast. Defaults to 30 seconds */
+        public Builder maxWait(Duration maxWait) {
+            this.maxWait = maxWait;
+            return this;
+        }
+
+        /** Fails requests with {@link RateLimitedException} instead of waiting */
+        public Builder failFast() {
+            return maxWait(Duration.ZERO);
+        }
+
+        /** The rate is never cut below this. Defaults to 1% of the rate */
+        public Builder minRate(double minRate) {
+            this.minRate = minRate;
+            return this;
+        }
+
+        /** Permits per second added each second after throttling. Defaults to 5% of the rate, at least 1 */
+        public Builder increase(double permitsPerSecond) {
+            this.increase = permitsPerSecond;
+            return this;
+        }
+
+        /** The factor the rate is multiplied by on 429 and 503 responses. Defaults to 0.5 */
+        public Builder decrease(double factor) {
+            this.decrease = factor;
+            return this;
+        }
+
+        public RateLimitPolicy build() {
+            return new RateLimitPolicy(this);
+        }
+    }
+
+}
@@ -0,0 +1,10 @@
+package net.openright.restclient;
+
+/** Thrown without contacting the server when a request would have to wait too long for the endpoint's rate limit */
+public class RateLimitedException extends RestException {
+
+    public RateLimitedException(String endpointName, String url) {
+        super(endpointName, "Rate limit for " + endpointName + " exceeded", url);
+    }
+
+}
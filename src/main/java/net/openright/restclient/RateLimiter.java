@@ -0,0 +1,124 @@
+package net.openright.restclient;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleUnaryOperator;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * The rate limit for one endpoint, shared by all threads without locking. The token
+ * bucket is kept as the time the next request is due (GCRA): each request moves it
+ * one interval ahead with compare-and-set, and waits until its own slot if the
+ * bucket is empty. Retry-After moves it past the pause, so every later request waits.
+ */
+class RateLimiter {
+
+    /** Throttling responses that arrive within this time of a cut were caused by the old rate */
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final RateLimitPolicy policy;
+    private final AtomicLong rateBits;
+    private final AtomicLong nextDue;
+    private final AtomicLong lastDecrease;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final Meter throttled;
+    private final Meter rejected;
+    private final Meter decreased;
+
+    RateLimiter(RateLimitPolicy policy, MetricRegistry metrics, String metricPrefix) {
+        this.policy = policy;
+        this.rateBits = new AtomicLong(Double.doubleToLongBits(policy.maxRate));
+        long now = System.nanoTime();
+        this.nextDue = new AtomicLong(now);
+        this.lastDecrease = new AtomicLong(now - DECREASE_INTERVAL_NANOS);
+        this.throttled = metrics.meter(MetricRegistry.name(metricPrefix, "throttled"));
+        this.rejected = metrics.meter(MetricRegistry.name(metricPrefix, "rejected"));
+        this.decreased = metrics.meter(MetricRegistry.name(metricPrefix, "decreased"));
+        register(metrics, MetricRegistry.name(metricPrefix, "rate"), (Gauge<Double>) this::getRate);
+        register(metrics, MetricRegistry.name(metricPrefix, "waiting"), (Gauge<Integer>) waiting::get);
+    }
+
+    private static void register(MetricRegistry metrics, String name, Gauge<?> gauge) {
+        metrics.remove(name);
+        metrics.register(name, gauge);
+    }
+
+    double getRate() {
+        return Double.longBitsToDouble(rateBits.get());
+    }
+
+    /** Waits for a permit, or throws {@link RateLimitedException} if that would take longer than the policy allows */
+    void acquire(String endpointName, String url) {
+        long waitNanos = reserve(System.nanoTime());
+        if (waitNanos < 0) {
+            throttled.mark();
+            rejected.mark();
+            throw new RateLimitedException(endpointName, url);
+        } else if (waitNanos > 0) {
+            throttled.mark();
+            waiting.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RestIOException(endpointName, new InterruptedIOException("Interrupted waiting for rate limit"), url);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+    }
+
+    /** Takes the next slot and returns how long to wait for it, or -1 without taking it if that's too long */
+    long reserve(long now) {
+        while (true) {
+            long interval = interval();
+            long tolerance = (policy.burst - 1) * interval;
+            long due = nextDue.get();
+            long start = Math.max(due, now);
+            long waitNanos = Math.max(0, start - tolerance - now);
+            if (waitNanos > policy.maxWaitNanos) {
+                return -1;
+            }
+            if (nextDue.compareAndSet(due, start + interval)) {
+                return waitNanos;
+            }
+        }
+    }
+
+    /** Additive increase: about {@link RateLimitPolicy#increase} per second while requests are sent at the limit */
+    void onSuccess() {
+        if (getRate() < policy.maxRate) {
+            updateRate(rate -> Math.min(policy.maxRate, rate + policy.increase / rate));
+        }
+    }
+
+    /** Multiplicative decrease, at most once per second, and a pause for <code>retryAfter</code> */
+    void onThrottled(Duration retryAfter) {
+        long now = System.nanoTime();
+        long last = lastDecrease.get();
+        if (now - last >= DECREASE_INTERVAL_NANOS && lastDecrease.compareAndSet(last, now)) {
+            updateRate(rate -> Math.max(policy.minRate, rate * policy.decrease));
+            decreased.mark();
+        }
+        if (retryAfter != null) {
+            long resumeAt = now + retryAfter.toNanos() + (policy.burst - 1) * interval();
+            nextDue.accumulateAndGet(resumeAt, (due, resume) -> due - resume < 0 ? resume : due);
+        }
+    }
+
+    private long interval() {
+        return (long) (TimeUnit.SECONDS.toNanos(1) / getRate());
+    }
+
+    private void updateRate(DoubleUnaryOperator update) {
+        rateBits.updateAndGet(bits -> Double.doubleToLongBits(update.applyAsDouble(Double.longBitsToDouble(bits))));
+    }
+
+}
@@ -0,0 +1,148 @@
+package net.openright.restclient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * How {@link RestClient#getRecords} splits a response body into records. Only one
+ * record is held in memory at a time, whatever the size of the response.
+ */
+public enum RecordFormat {
+
+    /** One JSON value per line, as in <code>application/x-ndjson</code>. Blank lines are skipped */
+    NDJSON("application/x-ndjson") {
+        @Override
+        RecordReader open(BufferedReader reader) {
+            return () -> {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        return line;
+                    }
+                }
+                return null;
+            };
+        }
+    },
+
+    /** The elements of a top-level JSON array, each as its JSON text */
+    JSON_ARRAY("application/json") {
+        @Override
+        RecordReader open(BufferedReader reader) {
+            return new JsonArrayReader(reader);
+        }
+    },
+
+    /**
+     * The <code>data</code> of each Server-Sent Event, with multiple data lines joined by
+     * newlines. Comments and the <code>event</code>, <code>id</code> and <code>retry</code> fields are ignored.
+     */
+    SERVER_SENT_EVENTS("text/event-stream") {
+        @Override
+        RecordReader open(BufferedReader reader) {
+            return () -> {
+                StringBuilder data = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        if (data != null) {
+                            return data.toString();
+                        }
+                    } else if (line.startsWith("data:")) {
+                        String value = line.startsWith("data: ") ? line.substring(6) : line.substring(5);
+                        data = data == null ? new StringBuilder(value) : data.append('\n').append(value);
+                    } else if (line.equals("data")) {
+                        data = data == null ? new StringBuilder() : data.append('\n');
+                    }
+                }
+                return null;
+            };
+        }
+    };
+
+    private final String mediaType;
+
+    RecordFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    /** The media type to send in the <code>Accept</code> header */
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    abstract RecordReader open(BufferedReader reader);
+
+    interface RecordReader {
+        /** The next record, or null at the end of the body */
+        String next() throws IOException;
+    }
+
+    /** Splits the array on commas outside strings and nested values, without parsing the elements */
+    private static class JsonArrayReader implements RecordReader {
+        private final BufferedReader reader;
+        private boolean started;
+        private boolean ended;
+
+        JsonArrayReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public String next() throws IOException {
+            if (!started) {
+                started = true;
+                int c = skipWhitespace();
+                if (c == -1) {
+                    return null;
+                } else if (c != '[') {
+                    throw new IOException("Expected a JSON array, but got '" + (char) c + "'");
+                }
+            }
+            if (ended) {
+                return null;
+            }
+            StringBuilder record = new StringBuilder();
+            int depth = 0;
+            boolean inString = false;
+            int c = skipWhitespace();
+            for (; c != -1; c = reader.read()) {
+                if (inString) {
+                    record.append((char) c);
+                    if (c == '\\') {
+                        c = reader.read();
+                        if (c == -1) {
+                            break;
+                        }
+                        record.append((char) c);
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (depth == 0 && (c == ',' || c == ']')) {
+                    ended = c == ']';
+                    String element = record.toString().trim();
+                    return element.isEmpty() && ended ? null : element;
+                } else {
+                    if (c == '"') {
+                        inString = true;
+                    } else if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                    record.append((char) c);
+                }
+            }
+            throw new IOException("Unexpected end of JSON array");
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c;
+            do {
+                c = reader.read();
+            } while (c != -1 && Character.isWhitespace(c));
+            return c;
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package net.openright.restclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import net.openright.restclient.util.IOUtil;
+
+/**
+ * The content of a POST, PUT or PATCH request. Bodies are streamed to the
+ * server; when the length is known up front it is sent with a fixed
+ * <code>Content-Length</code>, otherwise with chunked transfer encoding.
+ */
+public interface RequestBody {
+
+    /** The number of bytes in the body, or -1 if it is not known in advance */
+    long getContentLength();
+
+    void writeTo(OutputStream out) throws IOException;
+
+    /** The body as a stream, or null if it can only be written with {@link #writeTo(OutputStream)} */
+    default InputStream openStream() throws IOException {
+        return null;
+    }
+
+    /** Whether the body can be sent more than once, so that the request can be retried */
+    default boolean isRepeatable() {
+        return true;
+    }
+
+    static RequestBody of(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return bytes.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(bytes);
+            }
+        };
+    }
+
+    static RequestBody of(Path file) throws IOException {
+        long size = Files.size(file);
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return size;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                Files.copy(file, out);
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return Files.newInputStream(file);
+            }
+        };
+    }
+
+    /** A body read from the stream. The stream can only be sent once */
+    static RequestBody of(InputStream input, long contentLength) {
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try (InputStream in = input) {
+                    IOUtil.copy(in, out);
+                }
+            }
+
+            @Override
+            public InputStream openStream() {
+                return input;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+        };
+    }
+
+    static RequestBody of(InputStream input) {
+        return of(input, -1);
+    }
+
+    /** A body produced by a callback writing directly to the request stream */
+    static RequestBody of(IOUtil.WritingFunction writer) {
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writer.apply(out);
+            }
+        };
+    }
+
+}
@@ -1,149 +1,992 @@
 package net.openright.restclient;
 
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
-import java.net.HttpURLConnection;
+import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
 
+import net.openright.restclient.EndpointMetrics.CountingBody;
+
+import net.openright.restclient.transport.CachingTransport;
+import net.openright.restclient.transport.Cancellation;
+import net.openright.restclient.transport.CoalescingTransport;
+import net.openright.restclient.transport.CompressingTransport;
+import net.openright.restclient.transport.HttpClientTransport;
+import net.openright.restclient.transport.RequestHeaders;
+import net.openright.restclient.transport.RestRequest;
+import net.openright.restclient.transport.RestResponse;
+import net.openright.restclient.transport.RestTransport;
+import net.openright.restclient.transport.UrlConnectionTransport;
 import net.openright.restclient.util.IOUtil;
-import net.openright.restclient.util.Truncator;
+import net.openright.restclient.util.MeteredInputStream;
+import net.openright.restclient.util.PayloadCapture;
+import net.openright.restclient.util.VirtualThreads;
 
 public class RestClient {
 
+    private static final Executor DEFAULT_EXECUTOR = VirtualThreads.newThreadPerTaskExecutor("rest-client");
+
+    /**
+     * Response bytes left unread by the reader are discarded up to this limit, so the
+     * connection can be kept alive. Larger leftovers are cheaper to abandon with the connection.
+     */
+    static final long MAX_DRAIN_BYTES = 64 * 1024;
+
     final private Logger log;
-    private Timer requestTiming;
-    private Meter errorCounter;
+    final private EndpointMetrics metrics;
+
+    final private Executor executor;
+    final private Semaphore concurrencyLimit;
+    final private Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    final private RetryPolicy retryPolicy;
+    final private RetryBudget retryBudget;
+    final private CircuitBreaker circuitBreaker;
+    final private Hedging hedging;
+    final private RateLimiter rateLimiter;
+    final private int connectTimeout;
+    final private int readTimeout;
+    final private Duration timeout;
+    final private int downloadConnections;
+    final private long downloadChunkBytes;
 
     final private String endpointRoot;
-    private Map<String, String> headers = new HashMap<>();
+    final private LoadBalancer roots;
+    final private RestTransport transport;
+    private volatile RequestHeaders headers;
 
-    private int payloadLogLength = 100;
-    private String endpointName;
+    private volatile int payloadLogLength;
+    final private int logSampling;
+    final private String endpointName;
 
     public RestClient(String endpointName, String endpointRoot, MetricRegistry metrics) {
-        this.endpointName = endpointName;
-        this.endpointRoot = endpointRoot;
-        this.errorCounter = metrics.meter(MetricRegistry.name(getClass(), endpointName, "errors"));
-        this.requestTiming = metrics.timer(MetricRegistry.name(getClass(), endpointName, "requests"));
+        this(builder(endpointName, endpointRoot, metrics));
+    }
+
+    public RestClient(String endpointName, String endpointRoot, MetricRegistry metrics, RestTransport transport) {
+        this(builder(endpointName, endpointRoot, metrics).transport(transport));
+    }
+
+    private RestClient(Builder builder) {
+        this.endpointName = builder.endpointName;
+        this.metrics = new EndpointMetrics(builder.metrics, endpointName, builder.reservoir);
+        this.executor = builder.executor;
+        this.roots = new LoadBalancer(builder.endpointRoots, builder.loadBalancing, builder.transport, executor, metrics);
+        this.endpointRoot = roots.getPrimary().getRoot();
+        this.headers = builder.headers;
+        this.payloadLogLength = builder.payloadLogLength;
+        this.logSampling = builder.logSampling;
+        this.concurrencyLimit = builder.maxConcurrentRequests > 0 ? new Semaphore(builder.maxConcurrentRequests) : null;
+        this.retryPolicy = builder.retryPolicy;
+        this.retryBudget = retryPolicy != null ? retryPolicy.createBudget() : null;
+        this.circuitBreaker = builder.circuitBreaker != null
+                ? new CircuitBreaker(builder.circuitBreaker, metrics.registry, metrics.name("circuitBreaker"))
+                : null;
+        this.hedging = builder.hedging != null
+                ? new Hedging(builder.hedging, executor, metrics.requests,
+                        metrics.registry.meter(metrics.name("hedges")), metrics.registry.meter(metrics.name("hedgesWon")))
+                : null;
+
+        this.connectTimeout = builder.connectTimeout;
+        this.readTimeout = builder.readTimeout;
+        this.timeout = builder.timeout;
+        this.downloadConnections = builder.downloadConnections;
+        this.downloadChunkBytes = builder.downloadChunkBytes;
+        this.rateLimiter = builder.rateLimit != null
+                ? new RateLimiter(builder.rateLimit, metrics.registry, metrics.name("rateLimit"))
+                : null;
+
+        RestTransport transport = builder.transport;
+        if (builder.deadlineHeader != null) {
+            transport = withDeadlineHeader(transport, builder.deadlineHeader);
+        }
+        if (builder.compression) {
+            transport = new CompressingTransport(transport, builder.minCompressedRequestBytes, metrics.registry, metrics.name("compression"));
+        }
+        if (builder.requestCoalescing) {
+            transport = new CoalescingTransport(transport, metrics.registry.meter(metrics.name("coalesced")));
+        }
+        if (builder.responseCacheBytes > 0) {
+            transport = new CachingTransport(transport, builder.responseCacheBytes, metrics.registry, metrics.name("cache"));
+        }
+        this.transport = transport;
+
         this.log = LoggerFactory.getLogger(getClass().getName() + "." + endpointName);
     }
 
+    public static Builder builder(String endpointName, String endpointRoot, MetricRegistry metrics) {
+        return new Builder(endpointName, List.of(endpointRoot), metrics);
+    }
+
+    /**
+     * A client that spreads requests over several replicas of the endpoint, as
+     * configured with {@link Builder#loadBalancing(LoadBalancingPolicy)}.
+     */
+    public static Builder builder(String endpointName, List<String> endpointRoots, MetricRegistry metrics) {
+        return new Builder(endpointName, endpointRoots, metrics);
+    }
+
+    /** The endpoint root, or the first of them if there are several */
     public String getUrl() {
         return endpointRoot;
     }
 
     public String getString(String path) throws IOException {
-        return get(path, IOUtil::toString).get();
+        return execute("GET", path, RequestHeaders.empty(), null, RestClient::readString).get();
     }
 
     public <T> Optional<T> get(String path, IOUtil.ReadingFunction<T> transformer) {
-        long startTime = System.currentTimeMillis();
-        try (Context context = requestTiming.time()) {
-            HttpURLConnection connection = createURLConnection(path);
-            Optional<T> result = readResponse(connection, transformer);
-            log.debug("GET {} {}ms {} {}",
-                    connection.getResponseCode(), (System.currentTimeMillis() - startTime), connection.getURL(), truncate(result));
+        return get(path, RequestHeaders.empty(), transformer);
+    }
+
+    /** Like {@link #get(String, IOUtil.ReadingFunction)}, with extra headers for this request only */
+    public <T> Optional<T> get(String path, RequestHeaders requestHeaders, IOUtil.ReadingFunction<T> transformer) {
+        return execute("GET", path, requestHeaders, null, decoding(transformer));
+    }
+
+    /**
+     * Like {@link #get(String, IOUtil.ReadingFunction)}, but gives the transformer
+     * the raw response stream without decoding it to characters.
+     */
+    public <T> Optional<T> getBinary(String path, IOUtil.BinaryReadingFunction<T> transformer) {
+        return execute("GET", path, RequestHeaders.empty(), null, binary(transformer));
+    }
+
+    /**
+     * Reads the records of a response lazily, as the stream is consumed, so memory use
+     * doesn't grow with the size of the response. Each record is given to the parser
+     * as a separate reader. The connection is held until the stream is closed, so use
+     * try-with-resources. The <code>requests</code> timer covers the exchange up to the
+     * response headers. Request coalescing and response caching read the whole body
+     * into memory, and hedging is not used for these requests.
+     */
+    public <T> Stream<T> getRecords(String path, RecordFormat format, IOUtil.ReadingFunction<T> parser) {
+        return execute("GET", path, RequestHeaders.of("Accept", format.getMediaType()), null, records(format, parser))
+                .orElseGet(Stream::empty);
+    }
+
+    public Optional<String> postString(String path, String content) throws IOException {
+        return execute("POST", path, RequestHeaders.empty(), RequestBody.of(content), RestClient::readString);
+    }
+
+    public <T> Optional<T> post(String path, RequestBody body, IOUtil.ReadingFunction<T> transformer) {
+        return post(path, RequestHeaders.empty(), body, transformer);
+    }
+
+    public <T> Optional<T> post(String path, RequestHeaders requestHeaders, RequestBody body, IOUtil.ReadingFunction<T> transformer) {
+        return execute("POST", path, requestHeaders, body, decoding(transformer));
+    }
+
+    public <T> Optional<T> postBinary(String path, RequestBody body, IOUtil.BinaryReadingFunction<T> transformer) {
+        return execute("POST", path, RequestHeaders.empty(), body, binary(transformer));
+    }
+
+    public <T> Optional<T> put(String path, RequestBody body, IOUtil.ReadingFunction<T> transformer) {
+        return execute("PUT", path, RequestHeaders.empty(), body, decoding(transformer));
+    }
+
+    /**
+     * Sends a PATCH request. This needs {@link HttpClientTransport}: the default
+     * {@link UrlConnectionTransport} can't send PATCH, as {@link java.net.HttpURLConnection}
+     * doesn't support the method, and fails with a {@link RestIOException}.
+     */
+    public <T> Optional<T> patch(String path, RequestBody body, IOUtil.ReadingFunction<T> transformer) {
+        return execute("PATCH", path, RequestHeaders.empty(), body, decoding(transformer));
+    }
+
+    <T> Optional<T> execute(String method, String path, RequestHeaders requestHeaders, RequestBody body, BodyReader<T> bodyReader) {
+        Deadline deadline = Deadline.earliest(Deadline.current().orElse(null), timeout != null ? Deadline.after(timeout) : null);
+        if (retryPolicy == null) {
+            return hedgedAttempt(method, path, requestHeaders, body, bodyReader, deadline);
+        }
+        retryBudget.deposit();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Optional<T> result = hedgedAttempt(method, path, requestHeaders, body, bodyReader, deadline);
+                metrics.attempts.update(attempt);
+                return result;
+            } catch (RestException e) {
+                Duration delay = retryPolicy.retryDelay(method, body, attempt, e);
+                if (delay != null && deadline != null && delay.toNanos() >= deadline.remainingNanos()) {
+                    delay = null;
+                }
+                if (delay != null && !retryBudget.tryWithdraw()) {
+                    metrics.retryBudgetExhausted.mark();
+                    delay = null;
+                }
+                if (delay == null) {
+                    metrics.attempts.update(attempt);
+                    throw e;
+                }
+                log.debug("{} {} failed on attempt {}, retrying in {}ms: {}", method, path, attempt, delay.toMillis(), e.toString());
+                metrics.retries.mark();
+                try {
+                    Thread.sleep(delay.toMillis());
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    metrics.attempts.update(attempt);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private <T> Optional<T> hedgedAttempt(String method, String path, RequestHeaders requestHeaders, RequestBody body, BodyReader<T> bodyReader, Deadline deadline) {
+        if (hedging == null || !method.equals("GET") || !bodyReader.canHedge()) {
+            return attempt(method, path, requestHeaders, body, bodyReader, deadline, null);
+        }
+        return hedging.execute(cancellation -> attempt(method, path, requestHeaders, body, bodyReader, deadline, cancellation), endpointName, endpointRoot + path);
+    }
+
+    private <T> Optional<T> attempt(String method, String path, RequestHeaders requestHeaders, RequestBody body, BodyReader<T> bodyReader, Deadline deadline, Cancellation cancellation) {
+        if (rateLimiter == null) {
+            return guardedAttempt(method, path, requestHeaders, body, bodyReader, deadline, cancellation);
+        }
+        rateLimiter.acquire(endpointName, endpointRoot + path);
+        try {
+            Optional<T> result = guardedAttempt(method, path, requestHeaders, body, bodyReader, deadline, cancellation);
+            rateLimiter.onSuccess();
             return result;
-        } catch (IOException e) {
-            errorCounter.mark();
-            throw new RestIOException(endpointName, e, endpointRoot + path);
-        } catch (RuntimeException e) {
-            errorCounter.mark();
+        } catch (RestHttpException e) {
+            if (e.getResponseCode() == 429 || e.getResponseCode() == 503) {
+                rateLimiter.onThrottled(e.getRetryAfter().orElse(null));
+            }
             throw e;
         }
     }
 
-    public Optional<String> postString(String path, String content) throws IOException {
-        long startTime = System.currentTimeMillis();
-        try (Context context = requestTiming.time()) {
-            HttpURLConnection connection = createURLConnection(path);
-            connection.setRequestMethod("POST");
-            IOUtil.copy(content, connection);
-            Optional<String> result = readResponse(connection, IOUtil::toString);
-            log.debug("GET {} {}ms {} {}",
-                    connection.getResponseCode(), (System.currentTimeMillis() - startTime), connection.getURL(), truncate(result));
+    private <T> Optional<T> guardedAttempt(String method, String path, RequestHeaders requestHeaders, RequestBody body, BodyReader<T> bodyReader, Deadline deadline, Cancellation cancellation) {
+        if (circuitBreaker == null) {
+            return exchange(method, path, requestHeaders, body, bodyReader, deadline, cancellation);
+        }
+        long permit = circuitBreaker.tryAcquire();
+        if (permit == CircuitBreaker.REJECTED) {
+            throw new CircuitOpenException(endpointName, endpointRoot + path);
+        }
+        long startTime = System.nanoTime();
+        boolean failure = true;
+        try {
+            Optional<T> result = exchange(method, path, requestHeaders, body, bodyReader, deadline, cancellation);
+            failure = false;
+            return result;
+        } catch (RestHttpException e) {
+            failure = e.getResponseCode() >= 500;
+            throw e;
+        } catch (RestParseException e) {
+            failure = false;
+            throw e;
+        } finally {
+            if (isCancelled(cancellation)) {
+                circuitBreaker.onCancelled(permit);
+            } else {
+                circuitBreaker.onResult(permit, failure, System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    private <T> Optional<T> exchange(String method, String path, RequestHeaders requestHeaders, RequestBody body, BodyReader<T> bodyReader, Deadline deadline, Cancellation cancellation) {
+        if (deadline != null && deadline.isExpired()) {
+            metrics.timeouts.mark();
+            throw new RestTimeoutException(endpointName, new SocketTimeoutException("Deadline exceeded"), endpointRoot + path);
+        }
+        EndpointRoot root = roots.select();
+        long startTime = System.nanoTime();
+        boolean sampled = logSampling > 0 && ThreadLocalRandom.current().nextInt(logSampling) == 0;
+        PayloadCapture payload = sampled || log.isDebugEnabled() ? new PayloadCapture(payloadLogLength) : null;
+        boolean ioFailure = false, error = true;
+        Context context = metrics.requests.time();
+        try {
+            CountingBody countingBody = body != null ? new CountingBody(body) : null;
+            RestRequest request = createRequest(method, root.resolve(path), requestHeaders, countingBody)
+                    .withTimeouts(timeoutMillis(connectTimeout, deadline), timeoutMillis(readTimeout, deadline))
+                    .withCancellation(cancellation);
+            RestResponse response;
+            Deadline.Scope scope = Deadline.enter(deadline);
+            try {
+                response = transport.execute(request);
+            } finally {
+                scope.close();
+            }
+            metrics.recordExchange(response, countingBody != null ? countingBody.getBytesWritten() : 0);
+            if (deadline != null) {
+                deadline.check();
+            }
+            Optional<T> result = readResponse(response, bodyReader, payload, deadline);
+            error = false;
+            if (payload != null) {
+                logExchange(sampled, method, response, System.nanoTime() - startTime, payload);
+            }
             return result;
         } catch (IOException e) {
-            errorCounter.mark();
-            throw new RestIOException(endpointName, e, endpointRoot + path);
+            ioFailure = true;
+            if (e instanceof SocketTimeoutException || e instanceof HttpTimeoutException) {
+                if (!isCancelled(cancellation)) {
+                    metrics.errors.mark();
+                    metrics.timeouts.mark();
+                }
+                throw new RestTimeoutException(endpointName, e, root.getRoot() + path);
+            }
+            if (!isCancelled(cancellation)) {
+                metrics.errors.mark();
+            }
+            throw new RestIOException(endpointName, e, root.getRoot() + path);
         } catch (RuntimeException e) {
-            errorCounter.mark();
+            if (!isCancelled(cancellation)) {
+                metrics.errors.mark();
+            }
             throw e;
+        } finally {
+            if (isCancelled(cancellation)) {
+                roots.cancel(root);
+            } else {
+                context.stop();
+                roots.release(root, System.nanoTime() - startTime, ioFailure, error);
+            }
+        }
+    }
+
+    /**
+     * Sends the time left of the thread's deadline in a header. It's added below the
+     * response cache and request coalescing, so that requests with different deadlines
+     * still share responses.
+     */
+    private static RestTransport withDeadlineHeader(RestTransport transport, String headerName) {
+        return request -> {
+            Optional<Deadline> deadline = Deadline.current();
+            if (!deadline.isPresent()) {
+                return transport.execute(request);
+            }
+            String remaining = String.valueOf(deadline.get().remainingMillis());
+            return transport.execute(request.with(request.getHeaders().with(headerName, remaining), request.getBody()));
+        };
+    }
+
+    /** A cancelled attempt lost a hedge, and its failure says nothing about the endpoint */
+    private static boolean isCancelled(Cancellation cancellation) {
+        return cancellation != null && cancellation.isCancelled();
+    }
+
+    /**
+     * Executes {@link #get(String, IOUtil.ReadingFunction)} on the client's executor. If
+     * {@link Builder#maxConcurrentRequests(int)} is set, requests beyond the limit wait their
+     * turn in a queue, without holding a thread.
+     */
+    public <T> CompletableFuture<Optional<T>> getAsync(String path, IOUtil.ReadingFunction<T> transformer) {
+        return submit(() -> get(path, transformer));
+    }
+
+    public CompletableFuture<Optional<String>> postAsync(String path, String content) {
+        return submit(() -> postString(path, content));
+    }
+
+    /**
+     * Fetches all the paths on the client's executor with at most <code>parallelism</code>
+     * requests in flight, and returns the results in the order of the paths. A failed
+     * request gives a {@link BatchResult} with its exception instead of failing the batch.
+     *
+     * @throws IllegalArgumentException if <code>parallelism</code> is less than 1
+     */
+    public <T> List<BatchResult<T>> getAll(Collection<String> paths, int parallelism, IOUtil.ReadingFunction<T> transformer) {
+        checkParallelism(parallelism);
+        return batch(paths, transformer).start(executor, parallelism).toList();
+    }
+
+    /**
+     * Like {@link #getAll(Collection, int, IOUtil.ReadingFunction)}, but returns the results
+     * as they complete. Closing the stream stops requests that haven't started yet.
+     */
+    public <T> Stream<BatchResult<T>> getAllAsCompleted(Collection<String> paths, int parallelism, IOUtil.ReadingFunction<T> transformer) {
+        checkParallelism(parallelism);
+        return batch(paths, transformer).start(executor, parallelism).stream();
+    }
+
+    /**
+     * The items of all pages, starting at <code>path</code>. Pages are fetched as the
+     * stream is consumed, with the following pages prefetched in the background as
+     * configured in the {@link Pagination}. Close the stream to stop prefetching early.
+     */
+    public <P, T> Stream<T> getPages(String path, Pagination<P, T> pagination) {
+        PageIterator<T> pages = new PageIterator<>(endpointName, path, pagePath -> fetchPage(pagePath, pagination), pagination.prefetch, executor);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED), false)
+                .onClose(pages::close);
+    }
+
+    private <P, T> PageIterator.Page<T> fetchPage(String pageUrl, Pagination<P, T> pagination) {
+        String path = pagePath(pageUrl);
+        return execute("GET", path, RequestHeaders.empty(), null, (response, body) -> {
+            P page = pagination.pageReader.apply(new InputStreamReader(body, getCharset(response)));
+            return new PageIterator.Page<T>(pagination.items.apply(page), pagination.getNextPath(response, page));
+        }).orElseGet(() -> new PageIterator.Page<>(Collections.emptyList(), null));
+    }
+
+    /**
+     * The path and query of a page URL given by the server. The client's headers may hold
+     * credentials, so pages that resolve to other origins than the endpoint's roots are refused,
+     * including protocol-relative references like <code>//host/path</code>.
+     */
+    private String pagePath(String pageUrl) {
+        URL url;
+        try {
+            url = roots.getPrimary().resolve(pageUrl);
+        } catch (MalformedURLException e) {
+            throw new RestIOException(endpointName, e, pageUrl);
+        }
+        if (!roots.isSameOrigin(url)) {
+            throw new RestIOException(endpointName, new IOException("Page is not on the origin of " + endpointRoot), url.toString());
+        }
+        return url.getFile();
+    }
+
+    /**
+     * Saves the response body to <code>target</code> through a {@link java.nio.channels.FileChannel},
+     * without holding it in memory. When the server accepts byte ranges and the response is
+     * larger than a chunk, the chunks are fetched in parallel as configured with
+     * {@link Builder#download(int, long)}. The body is written to <code>target.part</code> and
+     * moved into place when complete. If a download is interrupted, the next call for the same
+     * target continues where it stopped, as long as the server's ETag or Last-Modified is unchanged.
+     *
+     * @return the size of the file
+     */
+    public long download(String path, Path target) {
+        Download download = new Download(this, endpointName, endpointRoot + path, path, target,
+                downloadConnections, downloadChunkBytes, metrics.downloadBytes, metrics.downloadChunks, metrics.downloadResumed);
+        return download.run();
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    private static void checkParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1, was " + parallelism);
         }
     }
 
-    private <T> Optional<T> readResponse(HttpURLConnection connection, IOUtil.ReadingFunction<T> transformer) throws IOException {
-        int responseCode = connection.getResponseCode();
+    private <T> Batch<T> batch(Collection<String> paths, IOUtil.ReadingFunction<T> transformer) {
+        Deadline deadline = Deadline.current().orElse(null);
+        return new Batch<>(endpointName, endpointRoot, paths, path -> {
+            Deadline.Scope scope = Deadline.enter(deadline);
+            try {
+                return get(path, transformer);
+            } finally {
+                scope.close();
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Deadline deadline = Deadline.current().orElse(null);
+        Runnable task = () -> {
+            metrics.active.inc();
+            Deadline.Scope scope = Deadline.enter(deadline);
+            try {
+                result.complete(request.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            } finally {
+                scope.close();
+                metrics.active.dec();
+                if (concurrencyLimit != null) {
+                    concurrencyLimit.release();
+                    startPending();
+                }
+            }
+        };
+        if (concurrencyLimit == null) {
+            executor.execute(task);
+        } else {
+            metrics.queued.inc();
+            pending.add(() -> {
+                metrics.queued.dec();
+                try {
+                    executor.execute(task);
+                } catch (RuntimeException e) {
+                    concurrencyLimit.release();
+                    result.completeExceptionally(e);
+                }
+            });
+            startPending();
+        }
+        return result;
+    }
+
+    /**
+     * Starts queued requests while there are free permits. Requests wait in the queue
+     * rather than in a task, so they don't hold a thread while waiting. Each finished
+     * request calls this again, so a request added while all permits are taken is
+     * started when one is released.
+     */
+    private void startPending() {
+        while (!pending.isEmpty() && concurrencyLimit.tryAcquire()) {
+            Runnable start = pending.poll();
+            if (start == null) {
+                concurrencyLimit.release();
+            } else {
+                start.run();
+            }
+        }
+    }
+
+    private void logExchange(boolean sampled, String method, RestResponse response, long nanos, PayloadCapture payload) throws IOException {
+        int responseCode = response.getResponseCode();
+        String content = responseCode == 204 ? "No content" : payload.toString(getCharset(response));
+        Object[] args = { method, responseCode, nanos / 1_000_000, response.getURL(), content };
+        if (sampled) {
+            log.info("{} {} {}ms {} {}", args);
+        } else {
+            log.debug("{} {} {}ms {} {}", args);
+        }
+    }
+
+    /** The client's timeout, shortened to what's left of the deadline */
+    private static int timeoutMillis(int timeout, Deadline deadline) {
+        if (deadline == null) {
+            return timeout;
+        }
+        long remaining = Math.min(Integer.MAX_VALUE, Math.max(1, deadline.remainingMillis()));
+        return timeout > 0 ? (int) Math.min(timeout, remaining) : (int) remaining;
+    }
+
+    private <T> Optional<T> readResponse(RestResponse response, BodyReader<T> bodyReader, PayloadCapture payload, Deadline deadline) throws IOException {
+        int responseCode = response.getResponseCode();
         if (responseCode >= 400) {
-            throw new RestHttpException(endpointName, connection);
+            throw new RestHttpException(endpointName, response);
         }
         if (responseCode == 204) {
+            IOUtil.drain(response.getInputStream(), MAX_DRAIN_BYTES);
+            response.close();
             return Optional.empty();
         }
-        try (Reader reader = new InputStreamReader(connection.getInputStream(), getCharset(connection))) {
-            return Optional.of(transformer.apply(reader));
+        if (bodyReader.ownsBody()) {
+            InputStream body = deadline != null ? deadline.guard(response.getInputStream()) : response.getInputStream();
+            try {
+                return Optional.of(bodyReader.read(response, body));
+            } catch (IOException | RuntimeException e) {
+                body.close();
+                throw e;
+            }
+        }
+        InputStream input = deadline != null ? deadline.guard(response.getInputStream()) : response.getInputStream();
+        try (MeteredInputStream body = new MeteredInputStream(input)) {
+            long startTime = System.nanoTime();
+            InputStream readerBody = new FilterInputStream(payload != null ? payload.capture(body) : body) {
+                @Override
+                public void close() {
+                    // Closed after draining what the reader left
+                }
+            };
+            T result = bodyReader.read(response, readerBody);
+            long readerNanos = System.nanoTime() - startTime;
+            metrics.recordBody(body.getBytesRead(), body.getReadNanos(), readerNanos - body.getReadNanos());
+            if (deadline != null) {
+                deadline.check();
+            }
+            IOUtil.drain(body, MAX_DRAIN_BYTES);
+            return Optional.of(result);
         } catch (RuntimeException e) {
-            throw new RestParseException(endpointName, e, connection.getURL().toString());
+            throw new RestParseException(endpointName, e, response.getURL().toString());
         }
     }
 
-    private Truncator truncate(Optional<?> o) {
-        return new Truncator(o, payloadLogLength);
+    interface BodyReader<T> {
+        T read(RestResponse response, InputStream body) throws IOException;
+
+        /** Whether the result reads the body after the reader returns, and closes it when done */
+        default boolean ownsBody() {
+            return false;
+        }
+
+        /** Whether a second copy of the request may run at the same time, with the first one cancelled */
+        default boolean canHedge() {
+            return !ownsBody();
+        }
+    }
+
+    private static <T> BodyReader<T> decoding(IOUtil.ReadingFunction<T> transformer) {
+        return (response, body) -> transformer.apply(new InputStreamReader(body, getCharset(response)));
+    }
+
+    private <T> BodyReader<Stream<T>> records(RecordFormat format, IOUtil.ReadingFunction<T> parser) {
+        return new BodyReader<Stream<T>>() {
+            @Override
+            public Stream<T> read(RestResponse response, InputStream body) {
+                String url = response.getURL().toString();
+                RecordFormat.RecordReader records = format.open(new BufferedReader(new InputStreamReader(body, getCharset(response))));
+                Iterator<T> iterator = new Iterator<T>() {
+                    private String next;
+                    private boolean ended;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (next == null && !ended) {
+                            try {
+                                next = records.next();
+                            } catch (IOException e) {
+                                throw new RestIOException(endpointName, e, url);
+                            }
+                            ended = next == null;
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public T next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        String record = next;
+                        next = null;
+                        try {
+                            return parser.apply(new StringReader(record));
+                        } catch (IOException e) {
+                            throw new RestIOException(endpointName, e, url);
+                        } catch (RuntimeException e) {
+                            throw new RestParseException(endpointName, e, url);
+                        }
+                    }
+                };
+                return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                        .onClose(() -> {
+                            try {
+                                IOUtil.drain(body, MAX_DRAIN_BYTES);
+                            } catch (IOException e) {
+                                log.debug("Failed to close {}: {}", url, e.toString());
+                            }
+                        });
+            }
+
+            @Override
+            public boolean ownsBody() {
+                return true;
+            }
+        };
     }
 
+    private static String readString(RestResponse response, InputStream body) throws IOException {
+        return IOUtil.toString(body, getCharset(response), response.getContentLength());
+    }
 
+    private static <T> BodyReader<T> binary(IOUtil.BinaryReadingFunction<T> transformer) {
+        return (response, body) -> transformer.apply(body);
+    }
+
+
+
+    /** @deprecated Use {@link Builder#basicAuth(String, String)} to configure the client before sharing it */
+    @Deprecated
     public void setBasicAuth(String username, String password) {
-        String encoded = Base64.getEncoder().encodeToString((username+":"+password).getBytes(StandardCharsets.UTF_8));
-        this.setHeader("Authorization", "Basic " + encoded);
+        this.setHeader("Authorization", basicAuthHeader(username, password));
     }
 
-    public void setHeader(String headerName, String headerValue) {
-        this.headers.put(headerName, headerValue);
+    /** @deprecated Use {@link Builder#header(String, String)} to configure the client before sharing it */
+    @Deprecated
+    public synchronized void setHeader(String headerName, String headerValue) {
+        this.headers = headers.with(headerName, headerValue);
     }
 
-    private HttpURLConnection createURLConnection(String path) throws IOException {
-        URL url = new URL(new URL(endpointRoot), path);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        for (Entry<String, String> entry : headers.entrySet()) {
-            connection.setRequestProperty(entry.getKey(), entry.getValue());
-        }
-        return connection;
+    private RestRequest createRequest(String method, URL url, RequestHeaders requestHeaders, RequestBody body) {
+        return new RestRequest(method, url, requestHeaders.over(headers), body);
+    }
+
+    public RestTransport getTransport() {
+        return transport;
     }
 
     public Timer getRequestTiming() {
-        return requestTiming;
+        return metrics.requests;
     }
 
     public Meter getErrorCounter() {
-        return errorCounter;
+        return metrics.errors;
     }
 
+    /** @deprecated Use {@link Builder#payloadLogLength(int)} */
+    @Deprecated
     public void setPayloadLogLength(int payloadLogLength) {
         this.payloadLogLength = payloadLogLength;
     }
 
-    private static Charset getCharset(HttpURLConnection connection) {
-        return Optional.ofNullable(connection.getHeaderField("Content-Type"))
+    private static String basicAuthHeader(String username, String password) {
+        return "Basic " + Base64.getEncoder().encodeToString((username+":"+password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Charset getCharset(RestResponse response) {
+        return Optional.ofNullable(response.getHeaderField("Content-Type"))
                 .filter(s -> s.contains("; charset="))
                 .map(s -> s.substring(s.indexOf("; charset=") + "; charset=".length()))
                 .map(Charset::forName)
                 .orElse(StandardCharsets.UTF_8);
     }
 
+    /**
+     * Configures a {@link RestClient}. The client built is safe to share between threads,
+     * and its headers and settings are fixed when it's built.
+     */
+    public static class Builder {
+
+        private final String endpointName;
+        private final List<String> endpointRoots;
+        private final MetricRegistry metrics;
+        private RestTransport transport = new UrlConnectionTransport();
+        private RequestHeaders headers = RequestHeaders.empty();
+        private int payloadLogLength = 100;
+        private int logSampling;
+        private Executor executor = DEFAULT_EXECUTOR;
+        private int maxConcurrentRequests;
+        private long responseCacheBytes;
+        private boolean requestCoalescing;
+        private Supplier<Reservoir> reservoir;
+        private RetryPolicy retryPolicy;
+        private CircuitBreakerPolicy circuitBreaker;
+        private HedgingPolicy hedging;
+        private RateLimitPolicy rateLimit;
+        private int connectTimeout = 10_000;
+        private int readTimeout = 60_000;
+        private Duration timeout;
+        private String deadlineHeader;
+        private int downloadConnections = 4;
+        private long downloadChunkBytes = 8 * 1024 * 1024;
+        private LoadBalancingPolicy loadBalancing = LoadBalancingPolicy.leastOutstanding();
+        private boolean compression = true;
+        private long minCompressedRequestBytes = -1;
+
+        private Builder(String endpointName, List<String> endpointRoots, MetricRegistry metrics) {
+            this.endpointName = endpointName;
+            this.endpointRoots = endpointRoots;
+            this.metrics = metrics;
+        }
+
+        public Builder transport(RestTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder header(String headerName, String headerValue) {
+            this.headers = headers.with(headerName, headerValue);
+            return this;
+        }
+
+        public Builder basicAuth(String username, String password) {
+            return header("Authorization", basicAuthHeader(username, password));
+        }
+
+        /** The number of bytes of each response body to include in the log */
+        public Builder payloadLogLength(int payloadLogLength) {
+            this.payloadLogLength = payloadLogLength;
+            return this;
+        }
+
+        /** Logs one in <code>n</code> requests at INFO, for looking at production traffic without enabling DEBUG */
+        public Builder logSampling(int n) {
+            this.logSampling = n;
+            return this;
+        }
+
+        /** The executor for asynchronous requests. Defaults to one virtual thread per request */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /** Limits the number of asynchronous requests in flight to this endpoint. Further requests are queued */
+        public Builder maxConcurrentRequests(int maxConcurrentRequests) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        /**
+         * Caches GET responses as allowed by their <code>Cache-Control</code> header,
+         * keeping at most <code>maxBytes</code> of response bodies in memory.
+         */
+        public Builder responseCache(long maxBytes) {
+            this.responseCacheBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Lets concurrent GET requests for the same URL and headers share a single
+         * exchange. The number of callers that were served by another caller's
+         * request is counted in the <code>coalesced</code> meter.
+         */
+        public Builder requestCoalescing() {
+            this.requestCoalescing = true;
+            return this;
+        }
+
+        /**
+         * The reservoir for the endpoint's timers and histograms, e.g. a
+         * {@link com.codahale.metrics.SlidingTimeWindowReservoir} for accurate tail
+         * percentiles on high-rate endpoints. Defaults to the registry's default reservoir.
+         */
+        public Builder reservoir(Supplier<Reservoir> reservoir) {
+            this.reservoir = reservoir;
+            return this;
+        }
+
+        /**
+         * Retries failed requests according to the policy. The number of attempts per
+         * request is recorded in the <code>attempts</code> histogram, retries in the
+         * <code>retries</code> meter and retries refused by the budget in
+         * <code>retryBudgetExhausted</code>.
+         */
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Fails calls fast with {@link CircuitOpenException} while the endpoint is failing
+         * or slow. Metrics are named <code>circuitBreaker.state</code> (0 closed, 1 open,
+         * 2 half open), <code>circuitBreaker.opened</code>, <code>.halfOpened</code>,
+         * <code>.closed</code> and <code>.rejected</code>.
+         */
+        public Builder circuitBreaker(CircuitBreakerPolicy policy) {
+            this.circuitBreaker = policy;
+            return this;
+        }
+
+        /**
+         * Sends a second copy of slow GET requests and uses the first response. Hedges
+         * sent are counted in the <code>hedges</code> meter and hedges that answered
+         * first in <code>hedgesWon</code>. Hedged requests run on the {@link #executor(Executor) executor}.
+         */
+        public Builder hedging(HedgingPolicy policy) {
+            this.hedging = policy;
+            return this;
+        }
+
+        /**
+         * Limits the rate of requests to the endpoint, adapting to 429 and 503 responses.
+         * The current rate is in the <code>rateLimit.rate</code> gauge, requests waiting
+         * for a permit in <code>rateLimit.waiting</code>, and requests that waited or were
+         * rejected in the <code>rateLimit.throttled</code> meter.
+         */
+        public Builder rateLimit(RateLimitPolicy policy) {
+            this.rateLimit = policy;
+            return this;
+        }
+
+        /** How long to wait for a connection. {@link Duration#ZERO} waits forever. Defaults to 10 seconds */
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = (int) connectTimeout.toMillis();
+            return this;
+        }
+
+        /** How long to wait for each read from the server. {@link Duration#ZERO} waits forever. Defaults to 60 seconds */
+        public Builder readTimeout(Duration readTimeout) {
+            this.readTimeout = (int) readTimeout.toMillis();
+            return this;
+        }
+
+        /**
+         * A {@link Deadline} for each call, covering retries, redirects, reading the response
+         * and running the reader. Calls made inside an earlier {@link Deadline#enter() entered}
+         * deadline keep that. Calls that run out of time throw {@link RestTimeoutException}.
+         */
+        public Builder timeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /** Tells the server how many milliseconds are left of the deadline in this header, so it can give up in time */
+        public Builder deadlineHeader(String headerName) {
+            this.deadlineHeader = headerName;
+            return this;
+        }
+
+        /**
+         * How {@link RestClient#download(String, Path)} splits large files: in chunks of
+         * <code>chunkBytes</code>, fetched on up to <code>connections</code> connections.
+         * Defaults to 4 connections and 8 MB chunks. Bytes written are counted in the
+         * <code>download.bytes</code> meter, whose rate is the throughput.
+         *
+         * @throws IllegalArgumentException if <code>connections</code> or <code>chunkBytes</code> is less than 1
+         */
+        public Builder download(int connections, long chunkBytes) {
+            if (connections < 1) {
+                throw new IllegalArgumentException("connections must be at least 1, was " + connections);
+            }
+            if (chunkBytes < 1) {
+                throw new IllegalArgumentException("chunkBytes must be at least 1, was " + chunkBytes);
+            }
+            this.downloadConnections = connections;
+            this.downloadChunkBytes = chunkBytes;
+            return this;
+        }
+
+        /**
+         * How to pick between the endpoint roots. Each root gets <code>roots.&lt;host:port&gt;</code>
+         * metrics for requests, errors, ejections, outstanding requests and whether it's ejected,
+         * and <code>ejectedRoots</code> counts the roots currently ejected.
+         * Defaults to {@link LoadBalancingPolicy#leastOutstanding()}.
+         */
+        public Builder loadBalancing(LoadBalancingPolicy policy) {
+            this.loadBalancing = policy;
+            return this;
+        }
+
+        /**
+         * Whether to ask for gzip or deflate compressed responses. On by default.
+         * Bytes before and after decompression are counted in <code>compression.received.compressed</code>
+         * and <code>compression.received.uncompressed</code>.
+         */
+        public Builder compression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Sends POST bodies of at least <code>minBytes</code> gzip compressed. Only use this
+         * for servers that accept <code>Content-Encoding: gzip</code> on requests.
+         */
+        public Builder requestCompression(long minBytes) {
+            this.compression = true;
+            this.minCompressedRequestBytes = minBytes;
+            return this;
+        }
+
+        public RestClient build() {
+            return new RestClient(this);
+        }
+    }
+
 }
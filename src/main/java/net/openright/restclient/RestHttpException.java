@@ -1,27 +1,58 @@
 package net.openright.restclient;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+
+import net.openright.restclient.transport.RestResponse;
 import net.openright.restclient.util.IOUtil;
 
 public class RestHttpException extends RestException {
 
+    /** The error body is kept up to this many bytes */
+    static final int MAX_DETAIL_BYTES = 16 * 1024;
+
     private int responseCode;
     private String responseMessage;
     private String detailText;
+    private String retryAfter;
 
     public RestHttpException(String endpointName, HttpURLConnection connection) throws IOException {
         this(endpointName, connection.getResponseCode(), connection.getResponseMessage(), connection.getURL().toString());
         this.detailText = IOUtil.toString(connection.getErrorStream(), StandardCharsets.UTF_8);
     }
 
+    public RestHttpException(String endpointName, RestResponse response) throws IOException {
+        this(endpointName, response.getResponseCode(), response.getResponseMessage(), response.getURL().toString());
+        this.detailText = readDetailText(response.getErrorStream());
+        this.retryAfter = response.getHeaderField("Retry-After");
+    }
+
     public RestHttpException(String endpointName, int responseCode, String responseMessage, String url) {
         super(endpointName, responseCode + " " + responseMessage, url);
         this.responseCode = responseCode;
         this.responseMessage = responseMessage;
     }
 
+    /** Reads at most {@link #MAX_DETAIL_BYTES} and drains the rest so the connection can be reused */
+    private static String readDetailText(InputStream errorStream) throws IOException {
+        if (errorStream == null) {
+            return null;
+        }
+        try (InputStream in = errorStream) {
+            String text = new String(in.readNBytes(MAX_DETAIL_BYTES), StandardCharsets.UTF_8);
+            boolean truncated = in.read() != -1;
+            IOUtil.drain(in, RestClient.MAX_DRAIN_BYTES);
+            return truncated ? text + "..." : text;
+        }
+    }
+
     public int getResponseCode() {
         return responseCode;
     }
@@ -34,4 +65,22 @@ public class RestHttpException extends RestException {
         return detailText;
     }
 
+    /** How long the server asked us to wait before trying again, from the <code>Retry-After</code> header */
+    public Optional<Duration> getRetryAfter() {
+        if (retryAfter == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(Duration.ofSeconds(Math.max(0, Long.parseLong(retryAfter.trim()))));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                Duration delay = Duration.between(ZonedDateTime.now(date.getZone()), date);
+                return Optional.of(delay.isNegative() ? Duration.ZERO : delay);
+            } catch (DateTimeParseException e2) {
+                return Optional.empty();
+            }
+        }
+    }
+
 }
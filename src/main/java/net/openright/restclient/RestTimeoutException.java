@@ -0,0 +1,15 @@
+package net.openright.restclient;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request times out: connecting, waiting for the server, or running
+ * past its {@link Deadline}. Counted in the endpoint's <code>timeouts</code> meter.
+ */
+public class RestTimeoutException extends RestIOException {
+
+    public RestTimeoutException(String endpointName, IOException e, String url) {
+        super(endpointName, e, url);
+    }
+
+}
@@ -0,0 +1,38 @@
+package net.openright.restclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket shared by all requests to an endpoint. Tokens are kept in
+ * thousandths so that each request can deposit a fraction of a retry.
+ */
+class RetryBudget {
+
+    private static final long SCALE = 1000;
+
+    private final long deposit;
+    private final long capacity;
+    private final AtomicLong tokens;
+
+    RetryBudget(double ratio, int capacity) {
+        this.deposit = (long) (ratio * SCALE);
+        this.capacity = capacity * SCALE;
+        this.tokens = new AtomicLong(this.capacity);
+    }
+
+    void deposit() {
+        tokens.accumulateAndGet(deposit, (current, amount) -> Math.min(capacity, current + amount));
+    }
+
+    boolean tryWithdraw() {
+        while (true) {
+            long current = tokens.get();
+            if (current < SCALE) {
+                return false;
+            } else if (tokens.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+}
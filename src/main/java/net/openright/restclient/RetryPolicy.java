@@ -0,0 +1,140 @@
+package net.openright.restclient;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed requests a {@link RestClient} retries and how long it waits
+ * in between. By default idempotent requests are retried up to three times on
+ * {@link RestIOException}s and on 429 and 5xx responses, with exponential backoff
+ * and full jitter. A <code>Retry-After</code> header from the server replaces the
+ * backoff, unless it asks us to wait longer than the maximum backoff.
+ *
+ * <p>Retries are limited by a budget: each request adds
+ * {@link Builder#retryBudget(double, int) budgetRatio} of a token to a bucket and
+ * each retry takes a whole token, so retries stay below that share of the traffic
+ * when an endpoint goes down.
+ */
+public class RetryPolicy {
+
+    private static final Set<String> IDEMPOTENT_METHODS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("GET", "HEAD", "PUT", "DELETE", "OPTIONS")));
+
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final Set<String> methods;
+    private final double budgetRatio;
+    private final int budgetCapacity;
+
+    private RetryPolicy(Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.initialBackoff = builder.initialBackoff;
+        this.maxBackoff = builder.maxBackoff;
+        this.methods = builder.methods;
+        this.budgetRatio = builder.budgetRatio;
+        this.budgetCapacity = builder.budgetCapacity;
+    }
+
+    public static RetryPolicy defaults() {
+        return builder().build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * How long to wait before making attempt number <code>attempt + 1</code>,
+     * or null if the failure should go to the caller.
+     */
+    Duration retryDelay(String method, RequestBody body, int attempt, RestException e) {
+        if (attempt >= maxAttempts || !methods.contains(method) || (body != null && !body.isRepeatable())) {
+            return null;
+        }
+        if (e instanceof RestHttpException) {
+            RestHttpException httpException = (RestHttpException) e;
+            if (!isRetryable(httpException.getResponseCode())) {
+                return null;
+            }
+            Duration retryAfter = httpException.getRetryAfter().orElse(null);
+            if (retryAfter != null) {
+                return retryAfter.compareTo(maxBackoff) <= 0 ? retryAfter : null;
+            }
+        } else if (!(e instanceof RestIOException)) {
+            return null;
+        }
+        return backoff(attempt);
+    }
+
+    /** Full jitter: a random delay up to the exponentially growing backoff */
+    Duration backoff(int attempt) {
+        long ceiling = initialBackoff.toNanos() << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoff.toNanos()) {
+            ceiling = maxBackoff.toNanos();
+        }
+        return Duration.ofNanos(ThreadLocalRandom.current().nextLong(ceiling + 1));
+    }
+
+    RetryBudget createBudget() {
+        return new RetryBudget(budgetRatio, budgetCapacity);
+    }
+
+    private static boolean isRetryable(int responseCode) {
+        return responseCode == 429 || (responseCode >= 500 && responseCode != 501 && responseCode != 505);
+    }
+
+    public static class Builder {
+
+        private int maxAttempts = 3;
+        private Duration initialBackoff = Duration.ofMillis(100);
+        private Duration maxBackoff = Duration.ofSeconds(10);
+        private Set<String> methods = IDEMPOTENT_METHODS;
+        private double budgetRatio = 0.1;
+        private int budgetCapacity = 10;
+
+        private Builder() {
+        }
+
+        /** The total number of attempts, including the first */
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder backoff(Duration initialBackoff, Duration maxBackoff) {
+            this.initialBackoff = initialBackoff;
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        /** The HTTP methods to retry. Defaults to the idempotent methods */
+        public Builder methods(String... methods) {
+            this.methods = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(methods)));
+            return this;
+        }
+
+        /**
+         * Allows retries for at most <code>ratio</code> of the requests, plus a
+         * reserve of <code>capacity</code> retries for endpoints with little traffic.
+         */
+        public Builder retryBudget(double ratio, int capacity) {
+            this.budgetRatio = ratio;
+            this.budgetCapacity = capacity;
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package net.openright.restclient.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Optional;
+
+/**
+ * A response where the body has been read into memory, so it can be read
+ * any number of times. Status and headers are taken from the original response.
+ */
+class BufferedResponse implements RestResponse {
+
+    private final RestResponse response;
+    private final int responseCode;
+    private final byte[] body;
+
+    private BufferedResponse(RestResponse response, int responseCode, byte[] body) {
+        this.response = response;
+        this.responseCode = responseCode;
+        this.body = body;
+    }
+
+    static BufferedResponse read(RestResponse response) throws IOException {
+        int responseCode = response.getResponseCode();
+        InputStream in = responseCode >= 400 ? response.getErrorStream() : response.getInputStream();
+        return new BufferedResponse(response, responseCode, in != null ? readFully(in) : new byte[0]);
+    }
+
+    static byte[] readFully(InputStream input) throws IOException {
+        try (InputStream in = input) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        return response.getResponseMessage();
+    }
+
+    @Override
+    public URL getURL() {
+        return response.getURL();
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        return response.getHeaderField(name);
+    }
+
+    @Override
+    public long getConnectNanos() {
+        return response.getConnectNanos();
+    }
+
+    @Override
+    public long getFirstByteNanos() {
+        return response.getFirstByteNanos();
+    }
+
+    @Override
+    public Optional<Boolean> isConnectionReused() {
+        return response.isConnectionReused();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (responseCode >= 400) {
+            throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + getURL());
+        }
+        return new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return responseCode >= 400 ? new ByteArrayInputStream(body) : null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
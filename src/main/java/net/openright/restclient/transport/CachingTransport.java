@@ -0,0 +1,285 @@
+package net.openright.restclient.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Caches GET responses in memory according to their <code>Cache-Control</code>
+ * header. Stale entries with an <code>ETag</code> or <code>Last-Modified</code>
+ * header are revalidated with a conditional request, and a 304 response is served
+ * from the stored body. The cache is bounded by the total size of the stored bodies,
+ * and the least recently used entries are evicted first. Range requests and requests
+ * with <code>Cache-Control: no-store</code> pass through without being buffered.
+ * <p>
+ * Responses are stored per URL and request headers, so requests with different headers
+ * never share an entry, whatever the response's <code>Vary</code> header says. Responses
+ * with <code>Vary: *</code> are not stored, nor are responses to requests with
+ * <code>Authorization</code> unless they are marked <code>public</code>.
+ */
+public class CachingTransport implements RestTransport {
+
+    private static final String[] STORED_HEADERS = { "Content-Type", "ETag", "Last-Modified", "Cache-Control" };
+
+    private final RestTransport delegate;
+    private final long maxBytes;
+    private final Map<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter revalidations;
+    private final Meter evictions;
+
+    public CachingTransport(RestTransport delegate, long maxBytes, MetricRegistry metrics, String metricPrefix) {
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        this.hits = metrics.meter(MetricRegistry.name(metricPrefix, "hits"));
+        this.misses = metrics.meter(MetricRegistry.name(metricPrefix, "misses"));
+        this.revalidations = metrics.meter(MetricRegistry.name(metricPrefix, "revalidations"));
+        this.evictions = metrics.meter(MetricRegistry.name(metricPrefix, "evictions"));
+    }
+
+    @Override
+    public RestResponse execute(RestRequest request) throws IOException {
+        if (!request.getMethod().equals("GET") || request.getHeaders().get("Range") != null || request.isNoStore()) {
+            return delegate.execute(request);
+        }
+        List<Object> key = Arrays.asList(request.getUrl().toString(), request.getHeaders().toMap());
+        Entry cached = lookup(key);
+        if (cached != null && cached.isFresh()) {
+            hits.mark();
+            return cached.toResponse();
+        }
+
+        RestResponse response = delegate.execute(cached != null ? cached.conditionalRequest(request) : request);
+        if (cached != null && response.getResponseCode() == 304) {
+            response.close();
+            revalidations.mark();
+            Entry revalidated = cached.revalidated(response);
+            store(key, revalidated);
+            return revalidated.toResponse();
+        }
+        misses.mark();
+        Optional<Long> maxAge = getMaxAge(response);
+        if (response.getResponseCode() != 200 || !maxAge.isPresent() || tooLarge(response) || !isShareable(request, response)) {
+            return response;
+        }
+        Entry entry = new Entry(response, BufferedResponse.readFully(response.getInputStream()), maxAge.get());
+        if (entry.body.length <= maxBytes) {
+            store(key, entry);
+        }
+        return entry.toResponse();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public Meter getHits() {
+        return hits;
+    }
+
+    public Meter getMisses() {
+        return misses;
+    }
+
+    public Meter getRevalidations() {
+        return revalidations;
+    }
+
+    public Meter getEvictions() {
+        return evictions;
+    }
+
+    private synchronized Entry lookup(List<Object> key) {
+        return entries.get(key);
+    }
+
+    private synchronized void store(List<Object> key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            totalBytes -= previous.body.length;
+        }
+        totalBytes += entry.body.length;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().body.length;
+            eldest.remove();
+            evictions.mark();
+        }
+    }
+
+    private boolean tooLarge(RestResponse response) {
+        return response.getContentLength() > maxBytes;
+    }
+
+    private static boolean isShareable(RestRequest request, RestResponse response) {
+        String vary = response.getHeaderField("Vary");
+        if (vary != null && vary.trim().equals("*")) {
+            return false;
+        }
+        return request.getHeaders().get("Authorization") == null || getDirectives(response).contains("public");
+    }
+
+    private static List<String> getDirectives(RestResponse response) {
+        String cacheControl = Optional.ofNullable(response.getHeaderField("Cache-Control")).orElse("").toLowerCase();
+        List<String> directives = new ArrayList<>();
+        for (String directive : cacheControl.split(",")) {
+            directives.add(directive.trim());
+        }
+        return directives;
+    }
+
+    /** A number of seconds, allowing quotes around it, or empty if it isn't a number */
+    private static Optional<Long> parseSeconds(String value) {
+        String seconds = value.trim();
+        if (seconds.length() >= 2 && seconds.startsWith("\"") && seconds.endsWith("\"")) {
+            seconds = seconds.substring(1, seconds.length() - 1).trim();
+        }
+        try {
+            long result = Long.parseLong(seconds);
+            return result >= 0 ? Optional.of(result) : Optional.empty();
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * The number of seconds the response can be served without revalidation, or
+     * empty if the response should not be stored. Responses without
+     * <code>max-age</code> are only stored if they can be revalidated, and responses
+     * with a malformed <code>max-age</code> or <code>Age</code> are not stored.
+     */
+    private static Optional<Long> getMaxAge(RestResponse response) {
+        List<String> directives = getDirectives(response);
+        if (directives.contains("no-store")) {
+            return Optional.empty();
+        }
+        boolean canRevalidate = response.getHeaderField("ETag") != null || response.getHeaderField("Last-Modified") != null;
+        String ageHeader = response.getHeaderField("Age");
+        Optional<Long> age = ageHeader != null ? parseSeconds(ageHeader) : Optional.of(0L);
+        if (!age.isPresent()) {
+            return Optional.empty();
+        }
+        if (directives.stream().anyMatch(directive -> directive.startsWith("no-cache"))) {
+            return canRevalidate ? Optional.of(0L) : Optional.empty();
+        }
+        for (String directive : directives) {
+            if (directive.startsWith("max-age=")) {
+                return parseSeconds(directive.substring("max-age=".length()))
+                        .map(maxAge -> Math.max(0, maxAge - age.get()));
+            }
+        }
+        return canRevalidate ? Optional.of(0L) : Optional.empty();
+    }
+
+    private static class Entry {
+        private final URL url;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final long expiresAt;
+
+        Entry(RestResponse response, byte[] body, long maxAgeSeconds) {
+            this(response.getURL(), storedHeaders(response, new TreeMap<>(String.CASE_INSENSITIVE_ORDER)), body, maxAgeSeconds);
+        }
+
+        private Entry(URL url, Map<String, String> headers, byte[] body, long maxAgeSeconds) {
+            this.url = url;
+            this.headers = headers;
+            this.body = body;
+            this.expiresAt = System.currentTimeMillis() + maxAgeSeconds * 1000;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        RestRequest conditionalRequest(RestRequest request) {
+            RequestHeaders conditionalHeaders = RequestHeaders.empty();
+            if (headers.containsKey("ETag")) {
+                conditionalHeaders = conditionalHeaders.with("If-None-Match", headers.get("ETag"));
+            }
+            if (headers.containsKey("Last-Modified")) {
+                conditionalHeaders = conditionalHeaders.with("If-Modified-Since", headers.get("Last-Modified"));
+            }
+            return request.with(conditionalHeaders.over(request.getHeaders()), request.getBody());
+        }
+
+        Entry revalidated(RestResponse notModified) {
+            Map<String, String> updatedHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            updatedHeaders.putAll(headers);
+            storedHeaders(notModified, updatedHeaders);
+            return new Entry(url, updatedHeaders, body, getMaxAge(notModified).orElse(0L));
+        }
+
+        RestResponse toResponse() {
+            return new CachedResponse(this);
+        }
+
+        private static Map<String, String> storedHeaders(RestResponse response, Map<String, String> headers) {
+            for (String header : STORED_HEADERS) {
+                String value = response.getHeaderField(header);
+                if (value != null) {
+                    headers.put(header, value);
+                }
+            }
+            return headers;
+        }
+    }
+
+    private static class CachedResponse implements RestResponse {
+        private final Entry entry;
+
+        CachedResponse(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return 200;
+        }
+
+        @Override
+        public String getResponseMessage() {
+            return "OK";
+        }
+
+        @Override
+        public URL getURL() {
+            return entry.url;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return entry.headers.get(name);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(entry.body);
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
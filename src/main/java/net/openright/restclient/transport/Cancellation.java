@@ -0,0 +1,54 @@
+package net.openright.restclient.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets a request in flight be abandoned from another thread. Interrupting a thread
+ * doesn't stop a blocking socket read, so transports register the connection or
+ * stream to close instead, which makes the read fail at once.
+ */
+public class Cancellation {
+
+    private final List<Closeable> resources = new ArrayList<>();
+    private boolean cancelled;
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Closes the resource when the request is cancelled, or at once if it already is */
+    public void onCancel(Closeable resource) {
+        synchronized (this) {
+            if (!cancelled) {
+                resources.add(resource);
+                return;
+            }
+        }
+        closeQuietly(resource);
+    }
+
+    public void cancel() {
+        List<Closeable> toClose;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toClose = new ArrayList<>(resources);
+            resources.clear();
+        }
+        toClose.forEach(Cancellation::closeQuietly);
+    }
+
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException | RuntimeException e) {
+            // The request is abandoned, so its failure doesn't matter
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package net.openright.restclient.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.codahale.metrics.Meter;
+
+/**
+ * Lets concurrent GET requests for the same URL with the same headers share a
+ * single exchange. The first caller executes the request and reads the body into
+ * memory; callers that arrive while it is in flight wait for the same response,
+ * or the same exception. Range requests and requests with <code>Cache-Control: no-store</code>,
+ * such as downloads, are not coalesced, so their bodies are streamed. The shared exchange is not {@link Cancellation cancelled}
+ * with the request that started it, as other callers may be waiting for it.
+ */
+public class CoalescingTransport implements RestTransport {
+
+    private final RestTransport delegate;
+    private final Meter coalesced;
+    private final ConcurrentMap<List<Object>, CompletableFuture<BufferedResponse>> inFlight = new ConcurrentHashMap<>();
+
+    public CoalescingTransport(RestTransport delegate, Meter coalesced) {
+        this.delegate = delegate;
+        this.coalesced = coalesced;
+    }
+
+    @Override
+    public RestResponse execute(RestRequest request) throws IOException {
+        if (!request.getMethod().equals("GET") || request.getHeaders().get("Range") != null || request.isNoStore()) {
+            return delegate.execute(request);
+        }
+        List<Object> key = Arrays.asList(request.getUrl().toString(), request.getHeaders().toMap());
+        CompletableFuture<BufferedResponse> response = new CompletableFuture<>();
+        CompletableFuture<BufferedResponse> existing = inFlight.putIfAbsent(key, response);
+        if (existing != null) {
+            coalesced.mark();
+            return await(existing, request);
+        }
+        try {
+            BufferedResponse result = BufferedResponse.read(delegate.execute(request.withCancellation(null)));
+            inFlight.remove(key);
+            response.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            inFlight.remove(key);
+            response.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public Meter getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Waits at most the request's connect and read timeouts together, which are capped by
+     * its deadline, as the caller would have waited for its own response. A cancelled
+     * hedge is interrupted, which ends the wait.
+     */
+    private static RestResponse await(CompletableFuture<BufferedResponse> response, RestRequest request) throws IOException {
+        try {
+            if (request.getReadTimeout() > 0) {
+                return response.get((long) request.getConnectTimeout() + request.getReadTimeout(), TimeUnit.MILLISECONDS);
+            }
+            return response.get();
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("Timed out waiting for the same request from another caller");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+package net.openright.restclient.transport;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import net.openright.restclient.RequestBody;
+
+/**
+ * Asks for gzip or deflate compressed responses and decompresses them as they are
+ * read. POST bodies with a known length of at least <code>minRequestBytes</code>
+ * are sent gzip compressed. Bytes on the wire and after decompression are counted
+ * in <code>received.compressed</code>/<code>received.uncompressed</code> and
+ * <code>sent.compressed</code>/<code>sent.uncompressed</code>.
+ */
+public class CompressingTransport implements RestTransport {
+
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private final RestTransport delegate;
+    private final long minRequestBytes;
+    private final Counter receivedCompressed;
+    private final Counter receivedUncompressed;
+    private final Counter sentCompressed;
+    private final Counter sentUncompressed;
+
+    /** @param minRequestBytes the smallest POST body to compress, or -1 to never compress requests */
+    public CompressingTransport(RestTransport delegate, long minRequestBytes, MetricRegistry metrics, String metricPrefix) {
+        this.delegate = delegate;
+        this.minRequestBytes = minRequestBytes;
+        this.receivedCompressed = metrics.counter(MetricRegistry.name(metricPrefix, "received", "compressed"));
+        this.receivedUncompressed = metrics.counter(MetricRegistry.name(metricPrefix, "received", "uncompressed"));
+        this.sentCompressed = metrics.counter(MetricRegistry.name(metricPrefix, "sent", "compressed"));
+        this.sentUncompressed = metrics.counter(MetricRegistry.name(metricPrefix, "sent", "uncompressed"));
+    }
+
+    @Override
+    public RestResponse execute(RestRequest request) throws IOException {
+        RequestHeaders headers = request.getHeaders();
+        if (headers.get("Accept-Encoding") == null) {
+            headers = headers.with("Accept-Encoding", ACCEPT_ENCODING);
+        }
+        RequestBody body = request.getBody();
+        if (shouldCompress(request)) {
+            headers = headers.with("Content-Encoding", "gzip");
+            body = new GzipBody(body);
+        }
+        RestResponse response = delegate.execute(request.with(headers, body));
+        String encoding = response.getHeaderField("Content-Encoding");
+        if (encoding == null || !hasBody(request, response)) {
+            return response;
+        }
+        encoding = encoding.trim().toLowerCase(Locale.ROOT);
+        return encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate")
+                ? new DecompressingResponse(response, encoding)
+                : response;
+    }
+
+    /** A response without a body can still name its encoding, but there's nothing to decompress */
+    private static boolean hasBody(RestRequest request, RestResponse response) throws IOException {
+        return !request.getMethod().equals("HEAD")
+                && response.getResponseCode() != 204
+                && response.getResponseCode() != 304
+                && response.getContentLength() != 0;
+    }
+
+    private boolean shouldCompress(RestRequest request) {
+        return minRequestBytes >= 0
+                && request.getMethod().equals("POST")
+                && request.hasBody()
+                && request.getBody().getContentLength() >= minRequestBytes
+                && request.getHeaders().get("Content-Encoding") == null;
+    }
+
+    private class GzipBody implements RequestBody {
+        private final RequestBody body;
+
+        GzipBody(RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return body.isRepeatable();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            GZIPOutputStream gzip = new GZIPOutputStream(new CountingOutputStream(out, sentCompressed), 8192);
+            body.writeTo(new CountingOutputStream(gzip, sentUncompressed));
+            gzip.finish();
+        }
+    }
+
+    private class DecompressingResponse implements RestResponse {
+        private final RestResponse response;
+        private final String encoding;
+
+        DecompressingResponse(RestResponse response, String encoding) {
+            this.response = response;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return response.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return response.getResponseMessage();
+        }
+
+        @Override
+        public URL getURL() {
+            return response.getURL();
+        }
+
+        /** The encoding and length headers describe the compressed body, so they're hidden */
+        @Override
+        public String getHeaderField(String name) {
+            if (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Content-Length")) {
+                return null;
+            }
+            return response.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getConnectNanos() {
+            return response.getConnectNanos();
+        }
+
+        @Override
+        public long getFirstByteNanos() {
+            return response.getFirstByteNanos();
+        }
+
+        @Override
+        public Optional<Boolean> isConnectionReused() {
+            return response.isConnectionReused();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return decompress(response.getInputStream());
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            InputStream errorStream = response.getErrorStream();
+            try {
+                return errorStream != null ? decompress(errorStream) : null;
+            } catch (IOException e) {
+                return errorStream;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.close();
+        }
+
+        private InputStream decompress(InputStream input) throws IOException {
+            BufferedInputStream buffered = new BufferedInputStream(new CountingInputStream(input, receivedCompressed), 2);
+            if (isEmpty(buffered)) {
+                return buffered;
+            }
+            InputStream decompressed;
+            if (encoding.equals("deflate")) {
+                Inflater inflater = new Inflater(!isZlibWrapped(buffered));
+                decompressed = new InflaterInputStream(buffered, inflater, 8192) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inflater.end();
+                    }
+                };
+            } else {
+                decompressed = new GZIPInputStream(buffered, 8192);
+            }
+            return new CountingInputStream(decompressed, receivedUncompressed);
+        }
+    }
+
+    /** A chunked body can turn out to be empty, and the decompressing streams would fail on the missing header */
+    private static boolean isEmpty(BufferedInputStream input) throws IOException {
+        input.mark(1);
+        int first = input.read();
+        input.reset();
+        return first < 0;
+    }
+
+    /** Some servers send raw deflate data instead of the zlib format that HTTP specifies */
+    private static boolean isZlibWrapped(BufferedInputStream input) throws IOException {
+        input.mark(2);
+        int cmf = input.read(), flg = input.read();
+        input.reset();
+        return cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final Counter counter;
+
+        CountingInputStream(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                counter.inc();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int numBytesRead = super.read(b, off, len);
+            if (numBytesRead > 0) {
+                counter.inc(numBytesRead);
+            }
+            return numBytesRead;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final Counter counter;
+
+        CountingOutputStream(OutputStream out, Counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.inc();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.inc(len);
+        }
+    }
+
+}
@@ -0,0 +1,327 @@
+package net.openright.restclient.transport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.openright.restclient.RequestBody;
+import net.openright.restclient.util.VirtualThreads;
+
+/**
+ * A transport based on {@link HttpClient}. All requests through the same
+ * transport share the client's connection pool, and HTTP/2 connections
+ * are multiplexed when the server supports it.
+ * <p>
+ * {@link HttpClient} sets the connect timeout per client, so the request's connect
+ * and read timeouts together limit the wait for the response headers. The default
+ * client connects with a timeout of {@link #DEFAULT_CONNECT_TIMEOUT}. Reads of the
+ * body have no timeout in {@link HttpClient}, so a read that is slower than the read
+ * timeout is stopped by closing the body stream, as with {@link UrlConnectionTransport}.
+ */
+public class HttpClientTransport implements RestTransport {
+
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final ScheduledExecutorService READ_TIMEOUTS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rest-client-read-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpClient client;
+    private final Executor writerExecutor = VirtualThreads.newThreadPerTaskExecutor("rest-client-body");
+
+    public HttpClientTransport() {
+        this(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(DEFAULT_CONNECT_TIMEOUT)
+                .build());
+    }
+
+    public HttpClientTransport(HttpClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public RestResponse execute(RestRequest request) throws IOException {
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(request.getUrl().toURI());
+        } catch (URISyntaxException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
+        request.getHeaders().forEach(builder::header);
+        if (request.getReadTimeout() > 0) {
+            builder.timeout(Duration.ofMillis((long) request.getConnectTimeout() + request.getReadTimeout()));
+        }
+        builder.method(request.getMethod(), request.hasBody()
+                ? publisher(request.getBody())
+                : BodyPublishers.noBody());
+        try {
+            long startTime = System.nanoTime();
+            HttpResponse<InputStream> response = client.send(builder.build(), BodyHandlers.ofInputStream());
+            request.onCancel(response.body());
+            InputStream body = request.getReadTimeout() > 0
+                    ? new ReadTimeoutStream(response.body(), request.getReadTimeout())
+                    : response.body();
+            return new HttpClientResponse(response, body, System.nanoTime() - startTime);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private BodyPublisher publisher(RequestBody body) {
+        BodyPublisher publisher = BodyPublishers.ofInputStream(() -> {
+            try {
+                InputStream stream = body.openStream();
+                return stream != null ? stream : pipe(body);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return body.getContentLength() >= 0
+                ? BodyPublishers.fromPublisher(publisher, body.getContentLength())
+                : publisher;
+    }
+
+    /**
+     * Runs a body that can only be written on a separate thread, so the client
+     * can read it as a stream.
+     */
+    private InputStream pipe(RequestBody body) throws IOException {
+        PipedBodyStream in = new PipedBodyStream();
+        PipedOutputStream out = new PipedOutputStream(in);
+        writerExecutor.execute(() -> {
+            try {
+                body.writeTo(out);
+            } catch (IOException e) {
+                in.fail(e);
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    in.fail(e);
+                }
+            }
+        });
+        return in;
+    }
+
+    private static class PipedBodyStream extends PipedInputStream {
+        private volatile IOException failure;
+
+        PipedBodyStream() {
+            super(64 * 1024);
+        }
+
+        void fail(IOException e) {
+            this.failure = e;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int numBytesRead = super.read(b, off, len);
+            if (numBytesRead == -1 && failure != null) {
+                throw failure;
+            }
+            return numBytesRead;
+        }
+    }
+
+    /**
+     * Closes the stream when a read takes longer than the timeout, which makes the read fail.
+     * Reads only record when they start and end. A single watchdog task checks the read in
+     * progress and schedules itself again for when it would time out, and stops while no
+     * read is in progress, so byte by byte reads don't schedule a task each.
+     */
+    private static class ReadTimeoutStream extends FilterInputStream {
+        private static final long NOT_READING = Long.MIN_VALUE;
+
+        private final long timeoutNanos;
+        private final AtomicBoolean watching = new AtomicBoolean();
+        private final Runnable watchdog = this::check;
+        private volatile long readStarted = NOT_READING;
+        private volatile boolean timedOut;
+
+        ReadTimeoutStream(InputStream in, int timeoutMillis) {
+            super(in);
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+
+        @Override
+        public int read() throws IOException {
+            startRead();
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw timedOut ? new SocketTimeoutException("Read timed out") : e;
+            } finally {
+                readStarted = NOT_READING;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            startRead();
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                throw timedOut ? new SocketTimeoutException("Read timed out") : e;
+            } finally {
+                readStarted = NOT_READING;
+            }
+        }
+
+        private void startRead() {
+            readStarted = System.nanoTime();
+            if (!watching.get() && watching.compareAndSet(false, true)) {
+                READ_TIMEOUTS.schedule(watchdog, timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void check() {
+            long started = readStarted;
+            if (started == NOT_READING) {
+                watching.set(false);
+                // A read that started before the flag was cleared didn't schedule the watchdog
+                if (readStarted != NOT_READING && watching.compareAndSet(false, true)) {
+                    READ_TIMEOUTS.schedule(watchdog, timeoutNanos, TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+            long remaining = started + timeoutNanos - System.nanoTime();
+            if (remaining > 0) {
+                READ_TIMEOUTS.schedule(watchdog, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+            timedOut = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                // The read fails either way
+            }
+        }
+    }
+
+    private static class HttpClientResponse implements RestResponse {
+
+        private final HttpResponse<InputStream> response;
+        private final InputStream body;
+        private final long firstByteNanos;
+
+        HttpClientResponse(HttpResponse<InputStream> response, InputStream body, long firstByteNanos) {
+            this.response = response;
+            this.body = body;
+            this.firstByteNanos = firstByteNanos;
+        }
+
+        /** {@link HttpClient} doesn't report connection setup separately, so it's included here */
+        @Override
+        public long getFirstByteNanos() {
+            return firstByteNanos;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getResponseMessage() {
+            return REASON_PHRASES.getOrDefault(response.statusCode(), "");
+        }
+
+        @Override
+        public URL getURL() {
+            try {
+                return response.uri().toURL();
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (response.statusCode() >= 400) {
+                throw new IOException("Server returned HTTP response code: " + response.statusCode() + " for URL: " + getURL());
+            }
+            return body;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return response.statusCode() >= 400 ? body : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    /** {@link HttpClient} does not expose the reason phrase, so use the standard ones to keep exception messages unchanged */
+    private static final Map<Integer, String> REASON_PHRASES = new HashMap<>();
+    static {
+        REASON_PHRASES.put(200, "OK");
+        REASON_PHRASES.put(201, "Created");
+        REASON_PHRASES.put(202, "Accepted");
+        REASON_PHRASES.put(204, "No Content");
+        REASON_PHRASES.put(206, "Partial Content");
+        REASON_PHRASES.put(301, "Moved Permanently");
+        REASON_PHRASES.put(302, "Found");
+        REASON_PHRASES.put(303, "See Other");
+        REASON_PHRASES.put(304, "Not Modified");
+        REASON_PHRASES.put(307, "Temporary Redirect");
+        REASON_PHRASES.put(308, "Permanent Redirect");
+        REASON_PHRASES.put(400, "Bad Request");
+        REASON_PHRASES.put(401, "Unauthorized");
+        REASON_PHRASES.put(403, "Forbidden");
+        REASON_PHRASES.put(404, "Not Found");
+        REASON_PHRASES.put(405, "Method Not Allowed");
+        REASON_PHRASES.put(406, "Not Acceptable");
+        REASON_PHRASES.put(408, "Request Timeout");
+        REASON_PHRASES.put(409, "Conflict");
+        REASON_PHRASES.put(410, "Gone");
+        REASON_PHRASES.put(412, "Precondition Failed");
+        REASON_PHRASES.put(413, "Payload Too Large");
+        REASON_PHRASES.put(415, "Unsupported Media Type");
+        REASON_PHRASES.put(416, "Range Not Satisfiable");
+        REASON_PHRASES.put(422, "Unprocessable Entity");
+        REASON_PHRASES.put(429, "Too Many Requests");
+        REASON_PHRASES.put(500, "Internal Server Error");
+        REASON_PHRASES.put(501, "Not Implemented");
+        REASON_PHRASES.put(502, "Bad Gateway");
+        REASON_PHRASES.put(503, "Service Unavailable");
+        REASON_PHRASES.put(504, "Gateway Timeout");
+    }
+
+}
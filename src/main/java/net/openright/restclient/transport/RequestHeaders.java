@@ -0,0 +1,107 @@
+package net.openright.restclient.transport;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable set of request headers. Headers for a single request can be
+ * layered {@link #over(RequestHeaders) over} the client's shared headers
+ * without copying them. Header names are case insensitive.
+ */
+public final class RequestHeaders {
+
+    private static final RequestHeaders EMPTY = new RequestHeaders(new String[0], new String[0], null);
+
+    private final String[] names;
+    private final String[] values;
+    private final RequestHeaders defaults;
+
+    private RequestHeaders(String[] names, String[] values, RequestHeaders defaults) {
+        this.names = names;
+        this.values = values;
+        this.defaults = defaults;
+    }
+
+    public static RequestHeaders empty() {
+        return EMPTY;
+    }
+
+    public static RequestHeaders of(String name, String value) {
+        return EMPTY.with(name, value);
+    }
+
+    /** A copy of these headers where the header has the given value */
+    public RequestHeaders with(String name, String value) {
+        int index = indexOf(name);
+        if (index >= 0) {
+            String[] newValues = values.clone();
+            newValues[index] = value;
+            return new RequestHeaders(names, newValues, defaults);
+        }
+        String[] newNames = Arrays.copyOf(names, names.length + 1);
+        String[] newValues = Arrays.copyOf(values, values.length + 1);
+        newNames[names.length] = name;
+        newValues[values.length] = value;
+        return new RequestHeaders(newNames, newValues, defaults);
+    }
+
+    /** These headers, falling back to <code>defaults</code> for headers not set here */
+    public RequestHeaders over(RequestHeaders defaults) {
+        if (defaults.isEmpty()) {
+            return this;
+        } else if (isEmpty()) {
+            return defaults;
+        }
+        return new RequestHeaders(names, values, this.defaults != null ? this.defaults.over(defaults) : defaults);
+    }
+
+    public String get(String name) {
+        int index = indexOf(name);
+        if (index >= 0) {
+            return values[index];
+        }
+        return defaults != null ? defaults.get(name) : null;
+    }
+
+    public boolean isEmpty() {
+        return names.length == 0 && (defaults == null || defaults.isEmpty());
+    }
+
+    public void forEach(BiConsumer<String, String> action) {
+        forEach(action, null);
+    }
+
+    private void forEach(BiConsumer<String, String> action, RequestHeaders overrides) {
+        for (int i = 0; i < names.length; i++) {
+            if (overrides == null || overrides.get(names[i]) == null) {
+                action.accept(names[i], values[i]);
+            }
+        }
+        if (defaults != null) {
+            defaults.forEach(action, new RequestHeaders(names, values, overrides));
+        }
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> result = new LinkedHashMap<>();
+        forEach(result::put);
+        return result;
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+}
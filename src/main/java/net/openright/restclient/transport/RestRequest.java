@@ -0,0 +1,97 @@
+package net.openright.restclient.transport;
+
+import java.io.Closeable;
+import java.net.URL;
+
+import net.openright.restclient.RequestBody;
+
+public class RestRequest {
+
+    private final String method;
+    private final URL url;
+    private final RequestHeaders headers;
+    private final RequestBody body;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final Cancellation cancellation;
+
+    public RestRequest(String method, URL url, RequestHeaders headers, RequestBody body) {
+        this(method, url, headers, body, 0, 0, null);
+    }
+
+    private RestRequest(String method, URL url, RequestHeaders headers, RequestBody body, int connectTimeout, int readTimeout, Cancellation cancellation) {
+        this.method = method;
+        this.url = url;
+        this.headers = headers;
+        this.body = body;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.cancellation = cancellation;
+    }
+
+    /** A copy of this request with other headers and body, for transports that decorate the request */
+    public RestRequest with(RequestHeaders headers, RequestBody body) {
+        return new RestRequest(method, url, headers, body, connectTimeout, readTimeout, cancellation);
+    }
+
+    /** Timeouts in milliseconds, as in {@link java.net.URLConnection#setConnectTimeout(int)}. 0 means none */
+    public RestRequest withTimeouts(int connectTimeout, int readTimeout) {
+        return new RestRequest(method, url, headers, body, connectTimeout, readTimeout, cancellation);
+    }
+
+    public RestRequest withCancellation(Cancellation cancellation) {
+        return new RestRequest(method, url, headers, body, connectTimeout, readTimeout, cancellation);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public RequestHeaders getHeaders() {
+        return headers;
+    }
+
+    public RequestBody getBody() {
+        return body;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /** Registers a connection or stream to close if the request is cancelled */
+    public void onCancel(Closeable resource) {
+        if (cancellation != null) {
+            cancellation.onCancel(resource);
+        }
+    }
+
+    /**
+     * Whether the request has <code>Cache-Control: no-store</code>, which tells the
+     * caching and coalescing transports to stream the response instead of buffering it
+     */
+    public boolean isNoStore() {
+        String cacheControl = headers.get("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                if (directive.trim().equalsIgnoreCase("no-store")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public boolean hasBody() {
+        return body != null;
+    }
+
+}
@@ -0,0 +1,55 @@
+package net.openright.restclient.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Optional;
+
+/**
+ * The response side of an exchange, modelled on the parts of
+ * {@link java.net.HttpURLConnection} that the client uses.
+ */
+public interface RestResponse extends Closeable {
+
+    int getResponseCode() throws IOException;
+
+    String getResponseMessage() throws IOException;
+
+    /** The URL that produced this response, after any redirects */
+    URL getURL();
+
+    String getHeaderField(String name);
+
+    /** The <code>Content-Length</code> of the response, or -1 if it's not known */
+    default long getContentLength() {
+        String contentLength = getHeaderField("Content-Length");
+        return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+    }
+
+    /** Nanoseconds spent resolving the host and connecting, or -1 if the transport can't tell */
+    default long getConnectNanos() {
+        return -1;
+    }
+
+    /** Nanoseconds from the request was sent until the response headers arrived, or -1 if not known */
+    default long getFirstByteNanos() {
+        return -1;
+    }
+
+    /**
+     * Whether the request was sent on a kept-alive connection, or empty if the
+     * transport can't tell or the response didn't come from the network
+     */
+    default Optional<Boolean> isConnectionReused() {
+        return Optional.empty();
+    }
+
+    InputStream getInputStream() throws IOException;
+
+    InputStream getErrorStream();
+
+    @Override
+    void close() throws IOException;
+
+}
@@ -0,0 +1,14 @@
+package net.openright.restclient.transport;
+
+import java.io.IOException;
+
+/**
+ * Executes a single HTTP exchange on behalf of a {@link net.openright.restclient.RestClient}.
+ * Timing, error metering and exception mapping are done by the client, so an
+ * implementation only has to send the request and expose the response.
+ */
+public interface RestTransport {
+
+    RestResponse execute(RestRequest request) throws IOException;
+
+}
@@ -0,0 +1,125 @@
+package net.openright.restclient.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+
+import net.openright.restclient.RequestBody;
+
+/**
+ * The original transport, one {@link HttpURLConnection} per request. Connection
+ * reuse is left to the JDK keep-alive cache.
+ * <p>
+ * {@link HttpURLConnection} does not support PATCH, so PATCH requests fail with a
+ * {@link ProtocolException}. Use {@link HttpClientTransport} to send them.
+ * <p>
+ * Request bodies larger than {@link #STREAMING_THRESHOLD} or with unknown length
+ * are streamed. Smaller bodies are left to {@link HttpURLConnection} to buffer, as
+ * this lets it resend the request if a kept-alive connection turns out to be closed.
+ * <p>
+ * {@link HttpURLConnection} has no public API to tell whether a kept-alive connection
+ * was reused, so {@link RestResponse#isConnectionReused()} is always empty.
+ * <p>
+ * A cancelled request is disconnected, as a read blocked on the socket doesn't respond to interrupts.
+ */
+public class UrlConnectionTransport implements RestTransport {
+
+    public static final int STREAMING_THRESHOLD = 64 * 1024;
+
+    @Override
+    public RestResponse execute(RestRequest request) throws IOException {
+        if (request.getMethod().equals("PATCH")) {
+            throw new ProtocolException("HttpURLConnection can't send PATCH requests. Use HttpClientTransport instead");
+        }
+        HttpURLConnection connection = (HttpURLConnection) request.getUrl().openConnection();
+        request.onCancel(connection::disconnect);
+        request.getHeaders().forEach(connection::setRequestProperty);
+        connection.setConnectTimeout(request.getConnectTimeout());
+        connection.setReadTimeout(request.getReadTimeout());
+        connection.setRequestMethod(request.getMethod());
+        if (request.hasBody()) {
+            setOutputMode(request.getBody(), connection);
+        }
+        long startTime = System.nanoTime();
+        connection.connect();
+        long connectTime = System.nanoTime();
+        if (request.hasBody()) {
+            try (OutputStream out = connection.getOutputStream()) {
+                request.getBody().writeTo(out);
+            }
+        }
+        connection.getResponseCode();
+        return new UrlConnectionResponse(connection, connectTime - startTime, System.nanoTime() - connectTime);
+    }
+
+    private static void setOutputMode(RequestBody body, HttpURLConnection connection) {
+        connection.setDoOutput(true);
+        if (body.getContentLength() > STREAMING_THRESHOLD) {
+            connection.setFixedLengthStreamingMode(body.getContentLength());
+        } else if (body.getContentLength() < 0) {
+            connection.setChunkedStreamingMode(0);
+        }
+    }
+
+    private static class UrlConnectionResponse implements RestResponse {
+
+        private final HttpURLConnection connection;
+        private final long connectNanos;
+        private final long firstByteNanos;
+
+        UrlConnectionResponse(HttpURLConnection connection, long connectNanos, long firstByteNanos) {
+            this.connection = connection;
+            this.connectNanos = connectNanos;
+            this.firstByteNanos = firstByteNanos;
+        }
+
+        @Override
+        public long getConnectNanos() {
+            return connectNanos;
+        }
+
+        @Override
+        public long getFirstByteNanos() {
+            return firstByteNanos;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return connection.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return connection.getResponseMessage();
+        }
+
+        @Override
+        public URL getURL() {
+            return connection.getURL();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connection.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return connection.getErrorStream();
+        }
+
+        @Override
+        public void close() {
+            // Streams are closed by the reader; closing the connection would prevent keep-alive
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package net.openright.restclient.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A small pool of 8 KB read buffers, so reading a response body does not
+ * allocate a new buffer every time. The pool is shared between threads rather
+ * than thread-local, as asynchronous requests run on short-lived virtual threads.
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final BlockingQueue<char[]> charBuffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    private static final BlockingQueue<byte[]> byteBuffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+    public static char[] acquireChars() {
+        char[] buffer = charBuffers.poll();
+        return buffer != null ? buffer : new char[BUFFER_SIZE];
+    }
+
+    public static void release(char[] buffer) {
+        charBuffers.offer(buffer);
+    }
+
+    public static byte[] acquireBytes() {
+        byte[] buffer = byteBuffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    public static void release(byte[] buffer) {
+        byteBuffers.offer(buffer);
+    }
+
+}
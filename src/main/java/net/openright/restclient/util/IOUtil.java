@@ -8,14 +8,27 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
 public class IOUtil {
+
+    /** Don't trust a Content-Length beyond this for presizing, the buffer will grow if needed */
+    private static final int MAX_PRESIZE = 1024 * 1024;
+
     public interface ReadingFunction<T> {
         T apply(Reader reader) throws IOException;
     }
 
+    public interface BinaryReadingFunction<T> {
+        T apply(InputStream in) throws IOException;
+    }
+
+    public interface WritingFunction {
+        void apply(OutputStream out) throws IOException;
+    }
+
     public static String toString(InputStream in) throws IOException {
         return toString(in, StandardCharsets.UTF_8);
     }
@@ -24,20 +37,68 @@ public class IOUtil {
         return toString(new InputStreamReader(in, charset));
     }
 
+    public static String toString(InputStream in, Charset charset, long expectedLength) throws IOException {
+        return toString(new InputStreamReader(in, charset), expectedLength);
+    }
+
     public static String toString(Reader reader) throws IOException {
+        return toString(reader, -1);
+    }
+
+    /**
+     * Reads the whole reader into a String, presizing the buffer for the
+     * expected number of characters if it's known, e.g. from <code>Content-Length</code>.
+     */
+    public static String toString(Reader reader, long expectedLength) throws IOException {
+        char[] arr = BufferPool.acquireChars();
         try {
-            char[] arr = new char[8 * 1024];
-            StringBuilder buffer = new StringBuilder();
+            StringBuilder buffer = new StringBuilder(expectedLength > 0 ? (int) Math.min(expectedLength, MAX_PRESIZE) : 16);
             int numCharsRead;
             while ((numCharsRead = reader.read(arr, 0, arr.length)) != -1) {
                 buffer.append(arr, 0, numCharsRead);
             }
             return buffer.toString();
         } finally {
+            BufferPool.release(arr);
             reader.close();
         }
     }
 
+    /**
+     * Reads and discards what is left of the stream, up to <code>maxBytes</code>, and closes it.
+     * A fully read stream lets the JDK return the connection to the keep-alive pool.
+     * Returns false if there was more left than <code>maxBytes</code>.
+     */
+    public static boolean drain(InputStream in, long maxBytes) throws IOException {
+        byte[] buffer = BufferPool.acquireBytes();
+        try {
+            long remaining = maxBytes;
+            int numBytesRead;
+            while ((numBytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining + 1))) != -1) {
+                remaining -= numBytesRead;
+                if (remaining < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            BufferPool.release(buffer);
+            in.close();
+        }
+    }
+
+    public static byte[] toByteArray(InputStream in) throws IOException {
+        try {
+            return in.readAllBytes();
+        } finally {
+            in.close();
+        }
+    }
+
+    public static ByteBuffer toByteBuffer(InputStream in) throws IOException {
+        return ByteBuffer.wrap(toByteArray(in));
+    }
+
     public static void copy(String content, HttpURLConnection connection) throws IOException {
         connection.setDoOutput(true);
         copy(content, connection.getOutputStream());
@@ -59,6 +120,21 @@ public class IOUtil {
         }
     }
 
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] arr = BufferPool.acquireBytes();
+        try {
+            long total = 0;
+            int numBytesRead;
+            while ((numBytesRead = in.read(arr, 0, arr.length)) != -1) {
+                out.write(arr, 0, numBytesRead);
+                total += numBytesRead;
+            }
+            return total;
+        } finally {
+            BufferPool.release(arr);
+        }
+    }
+
 
 
 }
@@ -0,0 +1,57 @@
+package net.openright.restclient.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a stream and the time spent waiting for them,
+ * to tell transfer time apart from the time spent processing the data.
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+    private long bytesRead;
+    private long readNanos;
+
+    public MeteredInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = super.read();
+        readNanos += System.nanoTime() - start;
+        if (b != -1) {
+            bytesRead++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int numBytesRead = super.read(b, off, len);
+        readNanos += System.nanoTime() - start;
+        if (numBytesRead > 0) {
+            bytesRead += numBytesRead;
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        bytesRead += skipped;
+        return skipped;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+}
@@ -0,0 +1,49 @@
+package net.openright.restclient.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Keeps a copy of the first bytes read from a stream, so a response can be
+ * logged without holding on to or re-serializing the whole body.
+ */
+public class PayloadCapture {
+
+    private final byte[] buffer;
+    private int length;
+
+    public PayloadCapture(int maxBytes) {
+        this.buffer = new byte[Math.max(0, maxBytes)];
+    }
+
+    public InputStream capture(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1 && length < buffer.length) {
+                    buffer[length++] = (byte) b;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int numBytesRead = super.read(b, off, len);
+                if (numBytesRead > 0 && length < buffer.length) {
+                    int captured = Math.min(numBytesRead, buffer.length - length);
+                    System.arraycopy(b, off, buffer, length, captured);
+                    length += captured;
+                }
+                return numBytesRead;
+            }
+        };
+    }
+
+    public String toString(Charset charset) {
+        return new String(buffer, 0, length, charset);
+    }
+
+}
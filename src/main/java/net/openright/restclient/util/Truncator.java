@@ -2,6 +2,8 @@ package net.openright.restclient.util;
 
 import java.util.Optional;
 
+/** @deprecated Use {@link PayloadCapture} to keep a bounded prefix of a payload as it is read */
+@Deprecated
 public class Truncator {
 
     private Optional<?> o;
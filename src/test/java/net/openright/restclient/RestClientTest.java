@@ -5,9 +5,39 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.catchThrowable;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.jsonbuddy.JsonObject;
 import org.jsonbuddy.parse.JsonParser;
@@ -16,14 +46,26 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
 import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.read.CyclicBufferAppender;
+import net.openright.restclient.transport.CachingTransport;
+import net.openright.restclient.transport.CoalescingTransport;
+import net.openright.restclient.transport.HttpClientTransport;
+import net.openright.restclient.transport.RequestHeaders;
+import net.openright.restclient.transport.RestRequest;
+import net.openright.restclient.transport.RestResponse;
+import net.openright.restclient.transport.RestTransport;
+import net.openright.restclient.transport.UrlConnectionTransport;
+import net.openright.restclient.util.BufferPool;
 import net.openright.restclient.util.IOUtil;
 
 public class RestClientTest {
@@ -256,4 +298,1644 @@ public class RestClientTest {
             .isEqualTo("This is the posted content");
     }
 
+    @Test
+    public void shouldGetStringWithHttpClientTransport() throws Exception {
+        HttpContext context = server.createContext("/httpClientGet", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("This is a test", exchange.getResponseBody());
+        });
+        restClient = new RestClient("TestEndpoint", restClient.getUrl(), metrics, new HttpClientTransport());
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo("This is a test");
+        assertThat(restClient.getRequestTiming().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldPostWithHttpClientTransport() throws Exception {
+        HttpContext context = server.createContext("/httpClientPost", (exchange) -> {
+            payload = IOUtil.toString(exchange.getRequestBody());
+            exchange.sendResponseHeaders(201, 0);
+            IOUtil.copy("This is the content", exchange.getResponseBody());
+        });
+        restClient = new RestClient("TestEndpoint", restClient.getUrl(), metrics, new HttpClientTransport());
+
+        assertThat(restClient.postString(context.getPath(), "This is the posted content").get())
+            .isEqualTo("This is the content");
+        assertThat(payload).isEqualTo("This is the posted content");
+    }
+
+    @Test
+    public void shouldReportErrorsWithHttpClientTransport() throws Exception {
+        HttpContext context = server.createContext("/httpClientError", (exchange) -> {
+            exchange.sendResponseHeaders(400, 0);
+            IOUtil.copy("This is the error details", exchange.getResponseBody());
+        });
+        restClient = new RestClient("TestEndpoint", restClient.getUrl(), metrics, new HttpClientTransport());
+
+        RestHttpException e = (RestHttpException) catchThrowable(() -> restClient.getString(context.getPath()));
+        assertThat(e).hasMessageContaining("400 Bad Request");
+        assertThat(e.getDetailText()).isEqualTo("This is the error details");
+        assertThat(e.getUrl()).isEqualTo(restClient.getUrl() + context.getPath());
+        assertThat(getErrorRate(restClient)).isEqualTo(1.0);
+    }
+
+    @Test
+    public void shouldGetAsync() throws Exception {
+        HttpContext context = server.createContext("/getAsync", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("This is a test", exchange.getResponseBody());
+        });
+
+        assertThat(restClient.getAsync(context.getPath(), IOUtil::toString).get()).contains("This is a test");
+        assertThat(restClient.getRequestTiming().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReportAsyncErrors() throws Exception {
+        HttpContext context = server.createContext("/getAsyncError", (exchange) -> {
+            exchange.sendResponseHeaders(500, 0);
+            exchange.getResponseBody().close();
+        });
+
+        CompletableFuture<Optional<String>> future = restClient.getAsync(context.getPath(), IOUtil::toString);
+        assertThat(catchThrowable(future::join))
+            .hasCauseInstanceOf(RestHttpException.class);
+        assertThat(getErrorRate(restClient)).isEqualTo(1.0);
+    }
+
+    @Test
+    public void shouldLimitConcurrentAsyncRequests() throws Exception {
+        HttpContext context = server.createContext("/limitAsync", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("ok", exchange.getResponseBody());
+        });
+        AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger();
+        HttpClientTransport delegate = new HttpClientTransport();
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).maxConcurrentRequests(2).transport(request -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+                return delegate.execute(request);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }).build();
+
+        List<CompletableFuture<Optional<String>>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(restClient.postAsync(context.getPath(), "request " + i));
+        }
+        for (CompletableFuture<Optional<String>> future : futures) {
+            assertThat(future.get()).contains("ok");
+        }
+        assertThat(maxInFlight.get()).isLessThanOrEqualTo(2);
+        assertThat(restClient.getRequestTiming().getCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldNotHoldThreadsForQueuedAsyncRequests() throws Exception {
+        HttpContext context = server.createContext("/queuedAsync", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("ok", exchange.getResponseBody());
+        });
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        ExecutorService threads = Executors.newCachedThreadPool();
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .maxConcurrentRequests(2)
+                .executor(task -> threads.execute(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }))
+                .build();
+
+        try {
+            List<CompletableFuture<Optional<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(restClient.getAsync(context.getPath(), IOUtil::toString));
+            }
+            for (CompletableFuture<Optional<String>> future : futures) {
+                assertThat(future.get()).contains("ok");
+            }
+        } finally {
+            threads.shutdown();
+        }
+        // Each finishing task starts the next queued request just before it returns
+        assertThat(maxRunning.get()).isLessThanOrEqualTo(4);
+        assertThat(metrics.counter("net.openright.restclient.RestClient.TestEndpoint.queued").getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldServeFreshResponsesFromCache() throws Exception {
+        AtomicInteger requestCount = new AtomicInteger();
+        HttpContext context = server.createContext("/cached", (exchange) -> {
+            requestCount.incrementAndGet();
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("This is cached", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).responseCache(1024).build();
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo("This is cached");
+        assertThat(restClient.getString(context.getPath())).isEqualTo("This is cached");
+        assertThat(requestCount.get()).isEqualTo(1);
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.cache.hits").getCount()).isEqualTo(1);
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.cache.misses").getCount()).isEqualTo(1);
+    }
+
+
+    @Test
+    public void shouldNotShareCachedResponsesBetweenRequestHeaders() throws Exception {
+        AtomicInteger requestCount = new AtomicInteger();
+        HttpContext context = server.createContext("/cachedPerUser", (exchange) -> {
+            requestCount.incrementAndGet();
+            String user = exchange.getRequestHeaders().getFirst("Authorization");
+            exchange.getResponseHeaders().set("Cache-Control", user != null && user.equals("public-user") ? "public, max-age=60" : "max-age=60");
+            exchange.sendResponseHeaders(200, 0);
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            IOUtil.copy("user=" + user + ("text/plain".equals(accept) ? " plain" : ""), exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).responseCache(1024).build();
+
+        assertThat(restClient.get(context.getPath(), RequestHeaders.of("Authorization", "alice"), IOUtil::toString))
+            .contains("user=alice");
+        assertThat(restClient.get(context.getPath(), RequestHeaders.of("Authorization", "bob"), IOUtil::toString))
+            .contains("user=bob");
+        assertThat(restClient.get(context.getPath(), RequestHeaders.of("Authorization", "alice"), IOUtil::toString))
+            .contains("user=alice");
+        assertThat(requestCount.get()).isEqualTo(3);
+
+        assertThat(restClient.get(context.getPath(), RequestHeaders.of("Authorization", "public-user"), IOUtil::toString))
+            .contains("user=public-user");
+        assertThat(restClient.get(context.getPath(), RequestHeaders.of("Authorization", "public-user"), IOUtil::toString))
+            .contains("user=public-user");
+        assertThat(requestCount.get()).isEqualTo(4);
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo("user=null");
+        assertThat(restClient.get(context.getPath(), RequestHeaders.of("Accept", "text/plain"), IOUtil::toString))
+            .contains("user=null plain");
+        assertThat(restClient.getString(context.getPath())).isEqualTo("user=null");
+        assertThat(requestCount.get()).isEqualTo(6);
+    }
+
+    @Test
+    public void shouldNotCacheResponsesWithMalformedMaxAge() throws Exception {
+        AtomicInteger requestCount = new AtomicInteger();
+        HttpContext context = server.createContext("/malformedMaxAge", (exchange) -> {
+            requestCount.incrementAndGet();
+            exchange.getResponseHeaders().set("Cache-Control", requestCount.get() == 1 ? "max-age=soon" : "max-age=\"60\"");
+            exchange.getResponseHeaders().set("Age", requestCount.get() == 2 ? "old" : "0");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("response " + requestCount.get(), exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).responseCache(1024).build();
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo("response 1");
+        assertThat(restClient.getString(context.getPath())).isEqualTo("response 2");
+        assertThat(restClient.getString(context.getPath())).isEqualTo("response 3");
+        assertThat(restClient.getString(context.getPath())).isEqualTo("response 3");
+        assertThat(requestCount.get()).isEqualTo(3);
+    }
+    @Test
+    public void shouldRevalidateStaleResponses() throws Exception {
+        List<String> ifNoneMatch = new ArrayList<>();
+        HttpContext context = server.createContext("/revalidated", (exchange) -> {
+            ifNoneMatch.add(exchange.getRequestHeaders().getFirst("If-None-Match"));
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                exchange.sendResponseHeaders(200, 0);
+                IOUtil.copy("{\"foo\":1}", exchange.getResponseBody());
+            }
+            exchange.close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).responseCache(1024).build();
+
+        assertThat(restClient.get(context.getPath(), JsonParser::parseToObject).get().longValue("foo")).contains(1L);
+        assertThat(restClient.get(context.getPath(), JsonParser::parseToObject).get().longValue("foo")).contains(1L);
+        assertThat(ifNoneMatch).containsExactly(null, "\"v1\"");
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.cache.revalidations").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedResponses() throws Exception {
+        AtomicInteger requestCount = new AtomicInteger();
+        HttpContext context = server.createContext("/evicted", (exchange) -> {
+            requestCount.incrementAndGet();
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("0123456789", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).responseCache(25).build();
+
+        restClient.getString(context.getPath() + "/a");
+        restClient.getString(context.getPath() + "/b");
+        restClient.getString(context.getPath() + "/a");
+        restClient.getString(context.getPath() + "/c");
+        assertThat(requestCount.get()).isEqualTo(3);
+        restClient.getString(context.getPath() + "/a");
+        restClient.getString(context.getPath() + "/b");
+        assertThat(requestCount.get()).isEqualTo(4);
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.cache.evictions").getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldCoalesceConcurrentGets() throws Exception {
+        AtomicInteger requestCount = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        HttpContext context = server.createContext("/coalesced", (exchange) -> {
+            requestCount.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("This is shared", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).requestCoalescing().build();
+
+        List<CompletableFuture<Optional<String>>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(restClient.getAsync(context.getPath(), IOUtil::toString));
+        }
+        while (metrics.meter("net.openright.restclient.RestClient.TestEndpoint.coalesced").getCount() < 4) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (CompletableFuture<Optional<String>> future : futures) {
+            assertThat(future.get()).contains("This is shared");
+        }
+        assertThat(requestCount.get()).isEqualTo(1);
+        assertThat(restClient.getRequestTiming().getCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldShareErrorsBetweenCoalescedGets() throws Exception {
+        HttpContext context = server.createContext("/coalescedError", (exchange) -> {
+            exchange.sendResponseHeaders(404, 0);
+            IOUtil.copy("Not here", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).requestCoalescing().build();
+
+        RestHttpException e = (RestHttpException) catchThrowable(() -> restClient.getString(context.getPath()));
+        assertThat(e.getResponseCode()).isEqualTo(404);
+        assertThat(e.getDetailText()).isEqualTo("Not here");
+    }
+
+    @Test
+    public void shouldLimitCoalescedWaitByOwnDeadline() throws Exception {
+        AtomicInteger requestCount = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        HttpContext context = server.createContext("/coalescedDeadline", (exchange) -> {
+            requestCount.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("Slow leader", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).requestCoalescing().build();
+
+        try {
+            CompletableFuture<Optional<String>> leader = restClient.getAsync(context.getPath(), IOUtil::toString);
+            while (requestCount.get() == 0) {
+                Thread.sleep(5);
+            }
+            long startTime = System.nanoTime();
+            try (Deadline.Scope scope = Deadline.after(Duration.ofMillis(200)).enter()) {
+                assertThat(catchThrowable(() -> restClient.getString(context.getPath()))).isInstanceOf(RestTimeoutException.class);
+            }
+            assertThat(System.nanoTime() - startTime).isLessThan(TimeUnit.SECONDS.toNanos(2));
+            assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.coalesced").getCount()).isEqualTo(1);
+            release.countDown();
+            assertThat(leader.get()).contains("Slow leader");
+            assertThat(requestCount.get()).isEqualTo(1);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private String requestHeader;
+
+    @Test
+    public void shouldStreamPostFromWriterInChunks() throws Exception {
+        HttpContext context = server.createContext("/postChunked", (exchange) -> {
+            requestHeader = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            payload = IOUtil.toString(exchange.getRequestBody());
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().close();
+        });
+
+        // A streamed body cannot be resent if the server has closed a kept-alive connection, so avoid reusing them
+        restClient = new RestClient("TestEndpoint", "http://127.0.0.1:" + server.getAddress().getPort(), metrics);
+        restClient.post(context.getPath(), RequestBody.of(out -> {
+            for (int i = 0; i < 3; i++) {
+                out.write(("line " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }), IOUtil::toString);
+        assertThat(requestHeader).isEqualTo("chunked");
+        assertThat(payload).isEqualTo("line 0\nline 1\nline 2\n");
+    }
+
+    @Test
+    public void shouldPutFileWithFixedLength() throws Exception {
+        HttpContext context = server.createContext("/putFile", (exchange) -> {
+            requestHeader = exchange.getRequestMethod() + " " + exchange.getRequestHeaders().getFirst("Content-Length");
+            payload = IOUtil.toString(exchange.getRequestBody());
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().close();
+        });
+        Path file = Files.createTempFile("upload", ".txt");
+        StringBuilder content = new StringBuilder();
+        while (content.length() <= UrlConnectionTransport.STREAMING_THRESHOLD) {
+            content.append("This is the file content\n");
+        }
+        Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+
+        restClient = new RestClient("TestEndpoint", "http://127.0.0.1:" + server.getAddress().getPort(), metrics);
+        restClient.put(context.getPath(), RequestBody.of(file), IOUtil::toString);
+        assertThat(requestHeader).isEqualTo("PUT " + content.length());
+        assertThat(payload).isEqualTo(content.toString());
+    }
+
+    @Test
+    public void shouldStreamBodiesWithHttpClientTransport() throws Exception {
+        HttpContext context = server.createContext("/httpClientPatch", (exchange) -> {
+            requestHeader = exchange.getRequestMethod();
+            payload = IOUtil.toString(exchange.getRequestBody());
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("patched", exchange.getResponseBody());
+        });
+        restClient = new RestClient("TestEndpoint", restClient.getUrl(), metrics, new HttpClientTransport());
+
+        assertThat(restClient.patch(context.getPath(), RequestBody.of(out -> out.write("From writer".getBytes(StandardCharsets.UTF_8))), IOUtil::toString))
+            .contains("patched");
+        assertThat(requestHeader).isEqualTo("PATCH");
+        assertThat(payload).isEqualTo("From writer");
+
+        restClient.post(context.getPath(), RequestBody.of(new ByteArrayInputStream("From stream".getBytes(StandardCharsets.UTF_8)), 11), IOUtil::toString);
+        assertThat(payload).isEqualTo("From stream");
+    }
+
+    @Test
+    public void shouldRefusePatchWithUrlConnectionTransport() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/urlConnectionPatch", (exchange) -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(200, 0);
+            exchange.close();
+        });
+
+        RestException e = (RestException) catchThrowable(() -> restClient.patch(context.getPath(), RequestBody.of(out -> out.write('x')), IOUtil::toString));
+        assertThat(e).isInstanceOf(RestIOException.class).hasMessageContaining("HttpClientTransport");
+        assertThat(requests.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldGetBinaryContent() throws Exception {
+        byte[] content = { 0, 1, 2, (byte) 0xff, (byte) 0xfe };
+        HttpContext context = server.createContext("/binary", (exchange) -> {
+            exchange.getResponseHeaders().set("Content-Type", "application/cbor");
+            exchange.sendResponseHeaders(200, content.length);
+            exchange.getResponseBody().write(content);
+            exchange.close();
+        });
+
+        assertThat(restClient.getBinary(context.getPath(), IOUtil::toByteArray).get()).isEqualTo(content);
+        ByteBuffer buffer = restClient.getBinary(context.getPath(), IOUtil::toByteBuffer).get();
+        assertThat(buffer.remaining()).isEqualTo(content.length);
+        assertThat(buffer.get(3)).isEqualTo((byte) 0xff);
+    }
+
+    @Test
+    public void shouldPostWithBinaryResponse() throws Exception {
+        HttpContext context = server.createContext("/postBinary", (exchange) -> {
+            payload = IOUtil.toString(exchange.getRequestBody());
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write(new byte[] { 42 });
+            exchange.close();
+        });
+
+        assertThat(restClient.postBinary(context.getPath(), RequestBody.of("question"), InputStream::read)).contains(42);
+        assertThat(payload).isEqualTo("question");
+    }
+
+    @Test
+    public void shouldReadResponsesLargerThanTheReadBuffer() throws Exception {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 3 * BufferPool.BUFFER_SIZE) {
+            content.append("Some content that spans several buffers\n");
+        }
+        byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+        HttpContext context = server.createContext("/largeResponse", (exchange) -> {
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo(content.toString());
+        assertThat(restClient.getString(context.getPath())).isEqualTo(content.toString());
+    }
+
+    @Test
+    public void shouldLayerRequestHeadersOverClientHeaders() throws Exception {
+        List<String> headers = new ArrayList<>();
+        HttpContext context = server.createContext("/requestHeaders", (exchange) -> {
+            headers.add(exchange.getRequestHeaders().getFirst("Accept") + " " + exchange.getRequestHeaders().getFirst("X-Request-Id"));
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("ok", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .header("Accept", "text/plain")
+                .header("X-Request-Id", "shared")
+                .build();
+
+        restClient.get(context.getPath(), RequestHeaders.of("x-request-id", "123"), IOUtil::toString);
+        restClient.get(context.getPath(), IOUtil::toString);
+        assertThat(headers).containsExactly("text/plain 123", "text/plain shared");
+    }
+
+    @Test
+    public void shouldRecordPhaseTimingsAndSizes() throws Exception {
+        HttpContext context = server.createContext("/phases", (exchange) -> {
+            IOUtil.toString(exchange.getRequestBody());
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("This is the response", exchange.getResponseBody());
+        });
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.";
+
+        restClient.postString(context.getPath(), "This is the request");
+        assertThat(metrics.timer(prefix + "connect").getCount()).isEqualTo(1);
+        assertThat(metrics.timer(prefix + "firstByte").getCount()).isEqualTo(1);
+        assertThat(metrics.timer(prefix + "transfer").getCount()).isEqualTo(1);
+        assertThat(metrics.timer(prefix + "parse").getCount()).isEqualTo(1);
+        assertThat(metrics.histogram(prefix + "bytesSent").getSnapshot().getMax()).isEqualTo(19);
+        assertThat(metrics.histogram(prefix + "bytesReceived").getSnapshot().getMax()).isEqualTo(20);
+        assertThat(metrics.meter(prefix + "responses.2xx").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCountResponsesPerStatusClass() throws Exception {
+        HttpContext context = server.createContext("/statusClass", (exchange) -> {
+            exchange.sendResponseHeaders(503, 0);
+            exchange.getResponseBody().close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .reservoir(() -> new SlidingTimeWindowReservoir(1, TimeUnit.MINUTES))
+                .build();
+
+        catchThrowable(() -> restClient.getString(context.getPath()));
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.responses.5xx").getCount()).isEqualTo(1);
+        assertThat(restClient.getRequestTiming().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRetryIdempotentRequests() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/retry", (exchange) -> {
+            if (requests.incrementAndGet() < 3) {
+                exchange.sendResponseHeaders(503, 0);
+            } else {
+                exchange.sendResponseHeaders(200, 0);
+                IOUtil.copy("Finally", exchange.getResponseBody());
+            }
+            exchange.getResponseBody().close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .retryPolicy(RetryPolicy.builder().backoff(Duration.ofMillis(1), Duration.ofMillis(10)).build())
+                .build();
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo("Finally");
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.";
+        assertThat(metrics.meter(prefix + "retries").getCount()).isEqualTo(2);
+        assertThat(metrics.histogram(prefix + "attempts").getSnapshot().getMax()).isEqualTo(3);
+        assertThat(restClient.getRequestTiming().getCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotRetryPostByDefault() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/retryPost", (exchange) -> {
+            requests.incrementAndGet();
+            IOUtil.toString(exchange.getRequestBody());
+            exchange.sendResponseHeaders(503, 0);
+            exchange.getResponseBody().close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .retryPolicy(RetryPolicy.builder().backoff(Duration.ofMillis(1), Duration.ofMillis(10)).build())
+                .build();
+
+        assertThatThrownBy(() -> restClient.postString(context.getPath(), "Not idempotent"))
+            .isInstanceOf(RestHttpException.class);
+        assertThat(requests.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotRetryWhenRetryAfterExceedsMaxBackoff() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/retryAfter", (exchange) -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "120");
+            exchange.sendResponseHeaders(429, 0);
+            exchange.getResponseBody().close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .retryPolicy(RetryPolicy.builder().backoff(Duration.ofMillis(1), Duration.ofSeconds(1)).build())
+                .build();
+
+        RestHttpException e = (RestHttpException) catchThrowable(() -> restClient.getString(context.getPath()));
+        assertThat(e.getRetryAfter()).contains(Duration.ofSeconds(120));
+        assertThat(requests.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRetryAtOnceOnNegativeRetryAfter() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/negativeRetryAfter", (exchange) -> {
+            if (requests.incrementAndGet() == 1) {
+                exchange.getResponseHeaders().set("Retry-After", "-5");
+                exchange.sendResponseHeaders(503, 0);
+            } else {
+                exchange.sendResponseHeaders(200, 0);
+                IOUtil.copy("ok", exchange.getResponseBody());
+            }
+            exchange.getResponseBody().close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .retryPolicy(RetryPolicy.defaults())
+                .build();
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo("ok");
+        assertThat(requests.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldStopRetryingWhenBudgetIsExhausted() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/retryBudget", (exchange) -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(500, 0);
+            exchange.getResponseBody().close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .retryPolicy(RetryPolicy.builder()
+                        .backoff(Duration.ofMillis(1), Duration.ofMillis(10))
+                        .retryBudget(0, 2)
+                        .build())
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            catchThrowable(() -> restClient.getString(context.getPath()));
+        }
+        assertThat(requests.get()).isEqualTo(5);
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.retryBudgetExhausted").getCount())
+            .isEqualTo(2);
+    }
+
+    @Test
+    public void shouldFailFastWhileCircuitIsOpen() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/circuitOpen", (exchange) -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(500, 0);
+            exchange.getResponseBody().close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .circuitBreaker(CircuitBreakerPolicy.builder().window(10, 4).build())
+                .build();
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(catchThrowable(() -> restClient.getString(context.getPath()))).isInstanceOf(RestHttpException.class);
+        }
+        RestException e = (RestException) catchThrowable(() -> restClient.getString(context.getPath()));
+        assertThat(e).isInstanceOf(CircuitOpenException.class).hasMessageContaining("TestEndpoint");
+        assertThat(e.getUrl()).isEqualTo(restClient.getUrl() + context.getPath());
+        assertThat(requests.get()).isEqualTo(4);
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.circuitBreaker.";
+        assertThat(metrics.meter(prefix + "opened").getCount()).isEqualTo(1);
+        assertThat(metrics.meter(prefix + "rejected").getCount()).isEqualTo(1);
+        assertThat(metrics.getGauges().get(prefix + "state").getValue()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCloseCircuitAfterSuccessfulTrialCalls() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/circuitHalfOpen", (exchange) -> {
+            if (requests.incrementAndGet() <= 2) {
+                exchange.sendResponseHeaders(503, 0);
+            } else {
+                exchange.sendResponseHeaders(200, 0);
+                IOUtil.copy("Recovered", exchange.getResponseBody());
+            }
+            exchange.getResponseBody().close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .circuitBreaker(CircuitBreakerPolicy.builder()
+                        .window(10, 2)
+                        .openDuration(Duration.ofMillis(50))
+                        .halfOpenCalls(2)
+                        .build())
+                .build();
+
+        catchThrowable(() -> restClient.getString(context.getPath()));
+        catchThrowable(() -> restClient.getString(context.getPath()));
+        assertThat(catchThrowable(() -> restClient.getString(context.getPath()))).isInstanceOf(CircuitOpenException.class);
+
+        Thread.sleep(60);
+        assertThat(restClient.getString(context.getPath())).isEqualTo("Recovered");
+        assertThat(restClient.getString(context.getPath())).isEqualTo("Recovered");
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.circuitBreaker.";
+        assertThat(metrics.meter(prefix + "halfOpened").getCount()).isEqualTo(1);
+        assertThat(metrics.meter(prefix + "closed").getCount()).isEqualTo(1);
+        assertThat(metrics.getGauges().get(prefix + "state").getValue()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldIgnoreCallsFromBeforeHalfOpenAsTrials() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(CircuitBreakerPolicy.builder()
+                .window(10, 1)
+                .openDuration(Duration.ofMillis(50))
+                .halfOpenCalls(2)
+                .build(), metrics, "staleResults");
+        long stale = circuitBreaker.tryAcquire();
+        circuitBreaker.onResult(circuitBreaker.tryAcquire(), true, 0);
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+        Thread.sleep(60);
+        long trial = circuitBreaker.tryAcquire();
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        circuitBreaker.onResult(stale, false, 0);
+        circuitBreaker.onResult(trial, false, 0);
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+
+        circuitBreaker.onResult(circuitBreaker.tryAcquire(), false, 0);
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void shouldHedgeSlowGets() throws Exception {
+        HttpContext context = server.createContext("/hedged", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("Hedged", exchange.getResponseBody());
+        });
+        AtomicInteger requests = new AtomicInteger();
+        CountDownLatch cancelled = new CountDownLatch(1);
+        UrlConnectionTransport delegate = new UrlConnectionTransport();
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).transport(request -> {
+            if (requests.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    cancelled.countDown();
+                    throw new IOException(e);
+                }
+            }
+            return delegate.execute(request);
+        }).hedging(HedgingPolicy.builder().delay(Duration.ofMillis(20)).maxHedgeRatio(1).build()).build();
+
+        assertThat(restClient.get(context.getPath(), IOUtil::toString)).contains("Hedged");
+        assertThat(cancelled.await(1, TimeUnit.SECONDS)).isTrue();
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.";
+        assertThat(metrics.meter(prefix + "hedges").getCount()).isEqualTo(1);
+        assertThat(metrics.meter(prefix + "hedgesWon").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCloseLosingHedgeWithoutCountingItAsFailure() throws Exception {
+        HttpServer slowServer = HttpServer.create(new InetSocketAddress(0), 0);
+        slowServer.setExecutor(Executors.newCachedThreadPool());
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger requests = new AtomicInteger();
+        slowServer.createContext("/hedgedSocket", (exchange) -> {
+            if (requests.incrementAndGet() == 1) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("Hedged", exchange.getResponseBody());
+        });
+        slowServer.start();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            restClient = RestClient.builder("TestEndpoint", "http://localhost:" + slowServer.getAddress().getPort(), metrics)
+                    .executor(executor)
+                    .hedging(HedgingPolicy.builder().delay(Duration.ofMillis(20)).maxHedgeRatio(1).build())
+                    .circuitBreaker(CircuitBreakerPolicy.builder().window(2, 1).build())
+                    .build();
+
+            assertThat(restClient.get("/hedgedSocket", IOUtil::toString)).contains("Hedged");
+            executor.shutdown();
+            assertThat(executor.awaitTermination(2, TimeUnit.SECONDS)).isTrue();
+            String prefix = "net.openright.restclient.RestClient.TestEndpoint.";
+            assertThat(metrics.meter(prefix + "hedgesWon").getCount()).isEqualTo(1);
+            assertThat(metrics.meter(prefix + "errors").getCount()).isEqualTo(0);
+            assertThat(metrics.meter(prefix + "circuitBreaker.opened").getCount()).isEqualTo(0);
+        } finally {
+            release.countDown();
+            slowServer.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldLimitShareOfHedgedRequests() throws Exception {
+        HttpContext context = server.createContext("/hedgeLimit", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("Slow", exchange.getResponseBody());
+        });
+        UrlConnectionTransport delegate = new UrlConnectionTransport();
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).transport(request -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return delegate.execute(request);
+        }).hedging(HedgingPolicy.builder().delay(Duration.ofMillis(1)).maxHedgeRatio(0).build()).build();
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(restClient.get(context.getPath(), IOUtil::toString)).contains("Slow");
+        }
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.hedges").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldEjectAndReadmitFailingRoots() throws Exception {
+        HttpContext context = server.createContext("/balanced", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("Balanced", exchange.getResponseBody());
+        });
+        String goodRoot = "http://localhost:" + server.getAddress().getPort();
+        String badRoot = "http://127.0.0.1:" + server.getAddress().getPort();
+        AtomicBoolean badRootDown = new AtomicBoolean(true);
+        UrlConnectionTransport delegate = new UrlConnectionTransport();
+        restClient = RestClient.builder("TestEndpoint", List.of(goodRoot, badRoot), metrics)
+                .transport(request -> {
+                    if (badRootDown.get() && request.getUrl().getHost().equals("127.0.0.1")) {
+                        throw new ConnectException("Connection refused");
+                    }
+                    return delegate.execute(request);
+                })
+                .loadBalancing(LoadBalancingPolicy.builder().ejectAfterFailures(2).probe("/balanced", Duration.ofMillis(10)).build())
+                .build();
+
+        List<String> failedUrls = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            try {
+                assertThat(restClient.getString(context.getPath())).isEqualTo("Balanced");
+            } catch (RestIOException e) {
+                failedUrls.add(e.getUrl());
+            }
+        }
+        assertThat(failedUrls).hasSize(2).containsOnly(badRoot + context.getPath());
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.";
+        assertThat(metrics.meter(prefix + "roots.127.0.0.1:" + server.getAddress().getPort() + ".ejections").getCount()).isEqualTo(1);
+        assertThat(metrics.getGauges().get(prefix + "ejectedRoots").getValue()).isEqualTo(1);
+
+        badRootDown.set(false);
+        for (int i = 0; i < 100 && !metrics.getGauges().get(prefix + "ejectedRoots").getValue().equals(0); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(metrics.getGauges().get(prefix + "ejectedRoots").getValue()).isEqualTo(0);
+        assertThat(restClient.getRequestTiming().getCount()).isEqualTo(20);
+    }
+
+    @Test
+    public void shouldPreferRootWithFewestOutstandingRequests() throws Exception {
+        HttpContext context = server.createContext("/leastOutstanding", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("ok", exchange.getResponseBody());
+        });
+        String slowRoot = "http://localhost:" + server.getAddress().getPort();
+        String fastRoot = "http://127.0.0.1:" + server.getAddress().getPort();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger slowRequests = new AtomicInteger();
+        UrlConnectionTransport delegate = new UrlConnectionTransport();
+        restClient = RestClient.builder("TestEndpoint", List.of(slowRoot, fastRoot), metrics)
+                .transport(request -> {
+                    if (request.getUrl().getHost().equals("localhost")) {
+                        slowRequests.incrementAndGet();
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    return delegate.execute(request);
+                })
+                .build();
+
+        List<CompletableFuture<Optional<String>>> futures = new ArrayList<>();
+        while (slowRequests.get() == 0) {
+            futures.add(restClient.getAsync(context.getPath(), IOUtil::toString));
+            Thread.sleep(10);
+        }
+        while (futures.stream().filter(f -> !f.isDone()).count() > slowRequests.get()) {
+            Thread.sleep(10);
+        }
+        int slowRequestsBefore = slowRequests.get();
+        for (int i = 0; i < 10; i++) {
+            assertThat(restClient.get(context.getPath(), IOUtil::toString)).contains("ok");
+        }
+        release.countDown();
+        for (CompletableFuture<Optional<String>> future : futures) {
+            assertThat(future.get()).contains("ok");
+        }
+        assertThat(slowRequests.get()).isEqualTo(slowRequestsBefore);
+    }
+
+    @Test
+    public void shouldDecompressGzipResponses() throws Exception {
+        String content = String.join(",", Collections.nCopies(1000, "compressible"));
+        HttpContext context = server.createContext("/gzip", (exchange) -> {
+            requestHeader = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            try (GZIPOutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+                IOUtil.copy(content, out);
+            }
+        });
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo(content);
+        assertThat(requestHeader).contains("gzip").contains("deflate");
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.compression.received.";
+        assertThat(metrics.counter(prefix + "uncompressed").getCount()).isEqualTo(content.length());
+        assertThat(metrics.counter(prefix + "compressed").getCount()).isLessThan(content.length() / 10);
+    }
+
+    @Test
+    public void shouldDecompressDeflateResponses() throws Exception {
+        HttpContext context = server.createContext("/deflate", (exchange) -> {
+            exchange.getResponseHeaders().set("Content-Encoding", "deflate");
+            exchange.sendResponseHeaders(200, 0);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(exchange.getResponseBody())) {
+                IOUtil.copy("This was deflated", out);
+            }
+        });
+
+        assertThat(restClient.get(context.getPath(), IOUtil::toString)).contains("This was deflated");
+    }
+
+    @Test
+    public void shouldAcceptEmptyGzipResponses() throws Exception {
+        HttpContext context = server.createContext("/emptyGzip", (exchange) -> {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith("/noContent")) {
+                exchange.sendResponseHeaders(204, -1);
+            } else if (path.endsWith("/zeroLength")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, 0);
+            }
+            exchange.close();
+        });
+
+        assertThat(restClient.get(context.getPath() + "/noContent", IOUtil::toString)).isEmpty();
+        assertThat(restClient.get(context.getPath() + "/zeroLength", IOUtil::toString)).contains("");
+        assertThat(restClient.get(context.getPath() + "/chunked", IOUtil::toString)).contains("");
+    }
+
+    @Test
+    public void shouldCompressLargeRequestBodies() throws Exception {
+        String content = String.join(",", Collections.nCopies(1000, "compressible"));
+        HttpContext context = server.createContext("/gzipRequest", (exchange) -> {
+            requestHeader = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            payload = IOUtil.toString(new GZIPInputStream(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).requestCompression(1024).build();
+
+        restClient.postString(context.getPath(), content);
+        assertThat(requestHeader).isEqualTo("gzip");
+        assertThat(payload).isEqualTo(content);
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.compression.sent.";
+        assertThat(metrics.counter(prefix + "uncompressed").getCount()).isEqualTo(content.length());
+        assertThat(metrics.counter(prefix + "compressed").getCount()).isLessThan(content.length() / 10);
+    }
+
+    @Test
+    public void shouldLogSampledRequestsAtInfo() throws Exception {
+        Logger logger = (Logger) LoggerFactory.getLogger(RestClient.class);
+        CyclicBufferAppender<ILoggingEvent> appender = new CyclicBufferAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        Level level = logger.getLevel();
+        logger.setLevel(Level.INFO);
+
+        HttpContext context = server.createContext("/loggingSampled", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("Sampled response", exchange.getResponseBody());
+        });
+        try {
+            restClient.getString(context.getPath());
+            assertThat(appender.getLength()).isEqualTo(0);
+
+            restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                    .logSampling(1)
+                    .payloadLogLength(7)
+                    .build();
+            restClient.getString(context.getPath());
+            assertThat(appender.getLength()).isEqualTo(1);
+            assertThat(appender.get(0).getLevel()).isEqualTo(Level.INFO);
+            assertThat(appender.get(0).getFormattedMessage())
+                .contains(context.getPath())
+                .endsWith(" Sampled");
+        } finally {
+            logger.setLevel(level);
+            logger.detachAppender(appender);
+        }
+    }
+
+    @Test
+    public void shouldReuseKeptAliveConnections() throws Exception {
+        Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<>());
+        HttpContext context = server.createContext("/keepAlive", (exchange) -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("[1, 2, 3] and some trailing content the reader ignores", exchange.getResponseBody());
+        });
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(restClient.get(context.getPath(), reader -> (char) reader.read())).contains('[');
+        }
+        assertThat(clientPorts.size()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    public void shouldLimitCapturedErrorText() throws Exception {
+        HttpContext context = server.createContext("/hugeError", (exchange) -> {
+            exchange.sendResponseHeaders(500, 0);
+            byte[] line = "This is a very long error message\n".getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < 2000; i++) {
+                exchange.getResponseBody().write(line);
+            }
+            exchange.getResponseBody().close();
+        });
+
+        RestHttpException e = (RestHttpException) catchThrowable(() -> restClient.getString(context.getPath()));
+        assertThat(e.getDetailText())
+            .startsWith("This is a very long error message")
+            .endsWith("...")
+            .hasSize(RestHttpException.MAX_DETAIL_BYTES + 3);
+    }
+
+    @Test
+    public void shouldGetAllPathsInOrder() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger();
+        HttpContext context = server.createContext("/batch", (exchange) -> {
+            String item = exchange.getRequestURI().getPath().substring("/batch/".length());
+            if (item.equals("13")) {
+                exchange.sendResponseHeaders(404, 0);
+            } else {
+                exchange.sendResponseHeaders(200, 0);
+                IOUtil.copy("item " + item, exchange.getResponseBody());
+            }
+            exchange.getResponseBody().close();
+        });
+        UrlConnectionTransport delegate = new UrlConnectionTransport();
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics).transport(request -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                return delegate.execute(request);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }).build();
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            paths.add(context.getPath() + "/" + i);
+        }
+
+        List<BatchResult<String>> results = restClient.getAll(paths, 4, IOUtil::toString);
+        assertThat(results).hasSize(50);
+        assertThat(results.get(0).get()).contains("item 0");
+        assertThat(results.get(49).get()).contains("item 49");
+        assertThat(results.get(13).isSuccessful()).isFalse();
+        assertThat(results.get(13).getException()).isInstanceOf(RestHttpException.class);
+        assertThat(maxInFlight.get()).isLessThanOrEqualTo(4);
+        assertThat(restClient.getRequestTiming().getCount()).isEqualTo(50);
+    }
+
+    @Test
+    public void shouldStreamBatchResultsAsTheyComplete() throws Exception {
+        HttpContext context = server.createContext("/batchStream", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy(exchange.getRequestURI().getPath(), exchange.getResponseBody());
+        });
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            paths.add(context.getPath() + "/" + i);
+        }
+
+        try (Stream<BatchResult<String>> results = restClient.getAllAsCompleted(paths, 3, IOUtil::toString)) {
+            assertThat(results.map(result -> result.get().get()).collect(Collectors.toList()))
+                .containsOnlyElementsOf(paths).hasSize(20);
+        }
+    }
+
+    @Test
+    public void shouldRejectBatchesWithoutParallelism() {
+        List<String> paths = Arrays.asList("/a", "/b");
+        assertThatThrownBy(() -> restClient.getAll(paths, 0, IOUtil::toString))
+                .isInstanceOf(IllegalArgumentException.class).hasMessageContaining("parallelism");
+        assertThatThrownBy(() -> restClient.getAllAsCompleted(paths, -1, IOUtil::toString))
+                .isInstanceOf(IllegalArgumentException.class).hasMessageContaining("parallelism");
+    }
+
+    @Test
+    public void shouldStreamNdjsonRecords() throws Exception {
+        HttpContext context = server.createContext("/ndjson", (exchange) -> {
+            requestHeader = exchange.getRequestHeaders().getFirst("Accept");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("{\"id\":1}\n\n{\"id\":2}\n{\"id\":3}\n", exchange.getResponseBody());
+        });
+
+        try (Stream<String> records = restClient.getRecords(context.getPath(), RecordFormat.NDJSON, IOUtil::toString)) {
+            assertThat(records.collect(Collectors.toList())).containsExactly("{\"id\":1}", "{\"id\":2}", "{\"id\":3}");
+        }
+        assertThat(requestHeader).isEqualTo("application/x-ndjson");
+    }
+
+    @Test
+    public void shouldStreamJsonArrayElements() throws Exception {
+        HttpContext context = server.createContext("/jsonArray", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy(" [ {\"text\": \"a, [b]\\\" }\"}, [1, 2], \"c\" , 4 ]", exchange.getResponseBody());
+        });
+
+        try (Stream<String> records = restClient.getRecords(context.getPath(), RecordFormat.JSON_ARRAY, IOUtil::toString)) {
+            assertThat(records.collect(Collectors.toList()))
+                .containsExactly("{\"text\": \"a, [b]\\\" }\"}", "[1, 2]", "\"c\"", "4");
+        }
+    }
+
+    @Test
+    public void shouldStreamServerSentEvents() throws Exception {
+        HttpContext context = server.createContext("/events", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy(": comment\nevent: update\ndata: first\n\nid: 2\ndata: second\ndata: line\n\n", exchange.getResponseBody());
+        });
+
+        try (Stream<String> records = restClient.getRecords(context.getPath(), RecordFormat.SERVER_SENT_EVENTS, IOUtil::toString)) {
+            assertThat(records.collect(Collectors.toList())).containsExactly("first", "second\nline");
+        }
+    }
+
+    @Test
+    public void shouldStopReadingWhenRecordStreamIsClosed() throws Exception {
+        CountDownLatch serverDone = new CountDownLatch(1);
+        AtomicBoolean serverFailed = new AtomicBoolean();
+        HttpContext context = server.createContext("/endless", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            try {
+                for (int i = 0; i < 1_000_000; i++) {
+                    exchange.getResponseBody().write(("{\"id\":" + i + "}\n").getBytes(StandardCharsets.UTF_8));
+                }
+                exchange.getResponseBody().close();
+            } catch (IOException e) {
+                serverFailed.set(true);
+            } finally {
+                serverDone.countDown();
+            }
+        });
+
+        try (Stream<String> records = restClient.getRecords(context.getPath(), RecordFormat.NDJSON, IOUtil::toString)) {
+            assertThat(records.limit(3).collect(Collectors.toList())).containsExactly("{\"id\":0}", "{\"id\":1}", "{\"id\":2}");
+        }
+        assertThat(serverDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(serverFailed.get()).isTrue();
+    }
+
+    @Test
+    public void shouldFollowNextLinksAcrossPages() throws Exception {
+        HttpContext context = server.createContext("/pages", (exchange) -> {
+            String query = exchange.getRequestURI().getQuery();
+            int page = query == null ? 1 : Integer.parseInt(query.substring("page=".length()));
+            if (page < 3) {
+                exchange.getResponseHeaders().add("Link",
+                        "</pages?page=1>; rel=\"first\", <pages?page=" + (page + 1) + ">; rel=\"next\"");
+            }
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("a" + page + ",b" + page, exchange.getResponseBody());
+        });
+
+        Pagination<List<String>, String> pagination = Pagination.linkHeader(reader -> Arrays.asList(IOUtil.toString(reader).split(",")));
+        try (Stream<String> items = restClient.getPages(context.getPath(), pagination)) {
+            assertThat(items.collect(Collectors.toList())).containsExactly("a1", "b1", "a2", "b2", "a3", "b3");
+        }
+    }
+
+    @Test
+    public void shouldFollowCursorAcrossPages() throws Exception {
+        HttpContext context = server.createContext("/cursor", (exchange) -> {
+            String query = exchange.getRequestURI().getQuery();
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy(query == null ? "c1;x,y" : query.equals("after=c1") ? ";z" : "", exchange.getResponseBody());
+        });
+
+        Pagination<String[], String> pagination = Pagination.cursor(
+                reader -> IOUtil.toString(reader).split(";", -1),
+                page -> page.length < 2 || page[1].isEmpty() ? Collections.emptyList() : Arrays.asList(page[1].split(",")),
+                page -> page[0].isEmpty() ? null : context.getPath() + "?after=" + page[0])
+                .prefetch(0);
+        try (Stream<String> items = restClient.getPages(context.getPath(), pagination)) {
+            assertThat(items.collect(Collectors.toList())).containsExactly("x", "y", "z");
+        }
+    }
+
+    @Test
+    public void shouldPrefetchNextPageWhileItemsAreConsumed() throws Exception {
+        List<String> requested = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch secondPageRequested = new CountDownLatch(1);
+        HttpContext context = server.createContext("/prefetch", (exchange) -> {
+            String query = exchange.getRequestURI().getQuery();
+            int page = query == null ? 1 : Integer.parseInt(query.substring("page=".length()));
+            requested.add("page" + page);
+            if (page == 2) {
+                secondPageRequested.countDown();
+            }
+            exchange.getResponseHeaders().add("Link", "<?page=" + (page + 1) + ">; rel=next");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("item" + page, exchange.getResponseBody());
+        });
+
+        Pagination<List<String>, String> pagination = Pagination.linkHeader(reader -> Arrays.asList(IOUtil.toString(reader))).prefetch(2);
+        try (Stream<String> items = restClient.getPages(context.getPath(), pagination)) {
+            Iterator<String> iterator = items.iterator();
+            assertThat(iterator.next()).isEqualTo("item1");
+            assertThat(secondPageRequested.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(iterator.next()).isEqualTo("item2");
+        }
+        Thread.sleep(200);
+        int requestsAfterClose = requested.size();
+        Thread.sleep(300);
+        assertThat(requested).hasSize(requestsAfterClose);
+        assertThat(requestsAfterClose).isLessThanOrEqualTo(5);
+    }
+
+    @Test
+    public void shouldDeliverPagesBeforePageFailure() throws Exception {
+        HttpContext context = server.createContext("/failingPages", (exchange) -> {
+            if (exchange.getRequestURI().getQuery() != null) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().add("Link", "<?page=2>; rel=next");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("first", exchange.getResponseBody());
+        });
+
+        Pagination<List<String>, String> pagination = Pagination.linkHeader(reader -> Arrays.asList(IOUtil.toString(reader)));
+        List<String> received = new ArrayList<>();
+        try (Stream<String> items = restClient.getPages(context.getPath(), pagination)) {
+            RestException e = (RestException) catchThrowable(() -> items.forEach(received::add));
+            assertThat(e).isInstanceOf(RestHttpException.class);
+            assertThat(e.getUrl()).isEqualTo(restClient.getUrl() + context.getPath() + "?page=2");
+        }
+        assertThat(received).containsExactly("first");
+    }
+
+    @Test
+    public void shouldNotFollowNextLinksToOtherOrigins() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String foreignUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/foreignPages?page=2";
+        HttpContext context = server.createContext("/foreignPages", (exchange) -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().add("Link", "<" + foreignUrl + ">; rel=next");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("first", exchange.getResponseBody());
+        });
+
+        Pagination<List<String>, String> pagination = Pagination.linkHeader(reader -> Arrays.asList(IOUtil.toString(reader)));
+        List<String> received = new ArrayList<>();
+        try (Stream<String> items = restClient.getPages(context.getPath(), pagination)) {
+            RestException e = (RestException) catchThrowable(() -> items.forEach(received::add));
+            assertThat(e).isInstanceOf(RestIOException.class);
+            assertThat(e.getUrl()).isEqualTo(foreignUrl);
+        }
+        assertThat(received).containsExactly("first");
+        assertThat(requests.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotFollowProtocolRelativeCursorsToOtherOrigins() throws Exception {
+        HttpServer otherServer = HttpServer.create(new InetSocketAddress(0), 0);
+        AtomicInteger stolen = new AtomicInteger();
+        otherServer.createContext("/steal", (exchange) -> {
+            stolen.incrementAndGet();
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("stolen", exchange.getResponseBody());
+        });
+        otherServer.start();
+        String otherUrl = "//127.0.0.1:" + otherServer.getAddress().getPort() + "/steal";
+        HttpContext context = server.createContext("/relativeCursor", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("first", exchange.getResponseBody());
+        });
+        try {
+            Pagination<String, String> pagination = Pagination.cursor(IOUtil::toString, Collections::singletonList, page -> otherUrl);
+            List<String> received = new ArrayList<>();
+            try (Stream<String> items = restClient.getPages(context.getPath(), pagination)) {
+                RestException e = (RestException) catchThrowable(() -> items.forEach(received::add));
+                assertThat(e).isInstanceOf(RestIOException.class);
+                assertThat(e.getUrl()).isEqualTo("http:" + otherUrl);
+            }
+            assertThat(received).containsExactly("first");
+            assertThat(stolen.get()).isEqualTo(0);
+        } finally {
+            otherServer.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldSpaceRequestsByRateLimit() throws Exception {
+        HttpContext context = server.createContext("/rateLimited", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("ok", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .rateLimit(RateLimitPolicy.of(20))
+                .build();
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertThat(restClient.getString(context.getPath())).isEqualTo("ok");
+        }
+        assertThat(System.nanoTime() - startTime).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(190));
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.rateLimit.";
+        assertThat(metrics.meter(prefix + "throttled").getCount()).isGreaterThanOrEqualTo(1);
+        assertThat(metrics.meter(prefix + "rejected").getCount()).isEqualTo(0);
+        assertThat(metrics.getGauges().get(prefix + "waiting").getValue()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldFailFastWhenRateLimitIsExceeded() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/rateLimitedFailFast", (exchange) -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("ok", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .rateLimit(RateLimitPolicy.builder(1).failFast().build())
+                .build();
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo("ok");
+        RestException e = (RestException) catchThrowable(() -> restClient.getString(context.getPath()));
+        assertThat(e).isInstanceOf(RateLimitedException.class).hasMessageContaining("TestEndpoint");
+        assertThat(e.getUrl()).isEqualTo(restClient.getUrl() + context.getPath());
+        assertThat(requests.get()).isEqualTo(1);
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.rateLimit.rejected").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSlowDownOnTooManyRequestsAndRecover() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/rateLimitedServer", (exchange) -> {
+            if (requests.incrementAndGet() == 1) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                exchange.sendResponseHeaders(429, -1);
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("ok", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .rateLimit(RateLimitPolicy.builder(100).increase(10).build())
+                .build();
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.rateLimit.";
+
+        assertThat(catchThrowable(() -> restClient.getString(context.getPath()))).isInstanceOf(RestHttpException.class);
+        assertThat(metrics.getGauges().get(prefix + "rate").getValue()).isEqualTo(50.0);
+        assertThat(metrics.meter(prefix + "decreased").getCount()).isEqualTo(1);
+
+        long startTime = System.nanoTime();
+        assertThat(restClient.getString(context.getPath())).isEqualTo("ok");
+        assertThat(System.nanoTime() - startTime).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(900));
+
+        for (int i = 0; i < 5; i++) {
+            restClient.getString(context.getPath());
+        }
+        assertThat((Double) metrics.getGauges().get(prefix + "rate").getValue()).isGreaterThan(50.0).isLessThan(100.0);
+    }
+
+    @Test
+    public void shouldTimeOutSlowResponse() throws Exception {
+        HttpContext context = server.createContext("/slowResponse", (exchange) -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("late", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .readTimeout(Duration.ofMillis(100))
+                .build();
+
+        RestException e = (RestException) catchThrowable(() -> restClient.getString(context.getPath()));
+        assertThat(e).isInstanceOf(RestTimeoutException.class);
+        assertThat(e.getUrl()).isEqualTo(restClient.getUrl() + context.getPath());
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.timeouts").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldTimeOutStalledBodyWithHttpClientTransport() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HttpContext context = server.createContext("/stalledBody", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write("partial".getBytes());
+            exchange.getResponseBody().flush();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .transport(new HttpClientTransport())
+                .readTimeout(Duration.ofMillis(200))
+                .build();
+
+        try {
+            long startTime = System.nanoTime();
+            RestException e = (RestException) catchThrowable(() -> restClient.getString(context.getPath()));
+            assertThat(e).isInstanceOf(RestTimeoutException.class);
+            assertThat(System.nanoTime() - startTime).isLessThan(TimeUnit.SECONDS.toNanos(2));
+            assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.timeouts").getCount()).isEqualTo(1);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void shouldNotTimeOutSteadyBodyWithHttpClientTransport() throws Exception {
+        HttpContext context = server.createContext("/steadyBody", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            for (int i = 0; i < 8; i++) {
+                exchange.getResponseBody().write('0' + i);
+                exchange.getResponseBody().flush();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .transport(new HttpClientTransport())
+                .readTimeout(Duration.ofMillis(200))
+                .build();
+
+        assertThat(restClient.getString(context.getPath())).isEqualTo("01234567");
+    }
+
+    @Test
+    public void shouldIncludeReaderInDeadline() throws Exception {
+        HttpContext context = server.createContext("/slowReader", (exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("content", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .timeout(Duration.ofMillis(100))
+                .build();
+
+        assertThat(catchThrowable(() -> restClient.get(context.getPath(), reader -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return IOUtil.toString(reader);
+        }))).isInstanceOf(RestTimeoutException.class);
+        assertThat(restClient.get(context.getPath(), IOUtil::toString)).contains("content");
+    }
+
+    @Test
+    public void shouldPropagateRemainingDeadline() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/deadline", (exchange) -> {
+            requests.incrementAndGet();
+            requestHeader = exchange.getRequestHeaders().getFirst("X-Request-Timeout");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("ok", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .timeout(Duration.ofSeconds(30))
+                .deadlineHeader("X-Request-Timeout")
+                .build();
+
+        try (Deadline.Scope scope = Deadline.after(Duration.ofSeconds(5)).enter()) {
+            assertThat(restClient.getAsync(context.getPath(), IOUtil::toString).get()).contains("ok");
+        }
+        assertThat(Long.parseLong(requestHeader)).isBetween(1L, 5000L);
+        assertThat(Deadline.current()).isEmpty();
+
+        try (Deadline.Scope scope = Deadline.after(Duration.ZERO).enter()) {
+            assertThat(catchThrowable(() -> restClient.getString(context.getPath()))).isInstanceOf(RestTimeoutException.class);
+        }
+        assertThat(requests.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldShareCachedResponsesAcrossDeadlines() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpContext context = server.createContext("/cachedDeadline", (exchange) -> {
+            requests.incrementAndGet();
+            requestHeader = exchange.getRequestHeaders().getFirst("X-Deadline-Ms");
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("cached", exchange.getResponseBody());
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .responseCache(1024 * 1024)
+                .deadlineHeader("X-Deadline-Ms")
+                .build();
+
+        try (Deadline.Scope scope = Deadline.after(Duration.ofSeconds(5)).enter()) {
+            assertThat(restClient.getString(context.getPath())).contains("cached");
+            Thread.sleep(10);
+            assertThat(restClient.getString(context.getPath())).contains("cached");
+        }
+        assertThat(requests.get()).isEqualTo(1);
+        assertThat(Long.parseLong(requestHeader)).isBetween(1L, 5000L);
+    }
+
+    @Test
+    public void shouldDownloadRangesInParallel() throws Exception {
+        byte[] content = randomBytes(300_000);
+        List<Integer> ranges = Collections.synchronizedList(new ArrayList<>());
+        HttpContext context = server.createContext("/download", serveRanges(content, ranges, offset -> false));
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .download(3, 64 * 1024)
+                .build();
+        Path target = Files.createTempDirectory("download").resolve("file.bin");
+
+        assertThat(restClient.download(context.getPath(), target)).isEqualTo(content.length);
+        assertThat(Files.readAllBytes(target)).isEqualTo(content);
+        assertThat(ranges).containsOnly(0, 65536, 131072, 196608, 262144).hasSize(5);
+        assertThat(Files.list(target.getParent()).map(p -> p.getFileName().toString()).collect(Collectors.toList()))
+            .containsExactly("file.bin");
+        String prefix = "net.openright.restclient.RestClient.TestEndpoint.download.";
+        assertThat(metrics.meter(prefix + "bytes").getCount()).isEqualTo(content.length);
+        assertThat(metrics.meter(prefix + "chunks").getCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldResumeInterruptedDownload() throws Exception {
+        byte[] content = randomBytes(300_000);
+        List<Integer> ranges = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean interrupted = new AtomicBoolean(true);
+        HttpContext context = server.createContext("/resumedDownload", serveRanges(content, ranges, offset -> interrupted.get() && offset == 131072));
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .download(2, 64 * 1024)
+                .build();
+        Path target = Files.createTempDirectory("download").resolve("file.bin");
+
+        assertThat(catchThrowable(() -> restClient.download(context.getPath(), target))).isInstanceOf(RestException.class);
+        assertThat(Files.exists(target)).isFalse();
+
+        List<Integer> firstRanges = new ArrayList<>(ranges);
+        ranges.clear();
+        interrupted.set(false);
+        assertThat(restClient.download(context.getPath(), target)).isEqualTo(content.length);
+        assertThat(Files.readAllBytes(target)).isEqualTo(content);
+        assertThat(ranges).contains(131072).doesNotContainAnyElementsOf(firstRanges);
+        List<Integer> allRanges = new ArrayList<>(firstRanges);
+        allRanges.addAll(ranges);
+        assertThat(allRanges).containsOnly(0, 65536, 131072, 196608, 262144).hasSize(5);
+        long resumedBytes = firstRanges.stream().mapToLong(offset -> Math.min(65536, content.length - offset)).sum();
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.download.resumed").getCount())
+            .isEqualTo(resumedBytes);
+    }
+
+    @Test
+    public void shouldStartOverWhenResumingWithOtherChunkSize() throws Exception {
+        byte[] content = randomBytes(300_000);
+        List<Integer> ranges = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean interrupted = new AtomicBoolean(true);
+        HttpContext context = server.createContext("/rechunkedDownload", serveRanges(content, ranges, offset -> interrupted.get() && offset == 131072));
+        Path target = Files.createTempDirectory("download").resolve("file.bin");
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .download(2, 64 * 1024)
+                .build();
+        assertThat(catchThrowable(() -> restClient.download(context.getPath(), target))).isInstanceOf(RestException.class);
+
+        ranges.clear();
+        interrupted.set(false);
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .download(2, 100_000)
+                .requestCoalescing()
+                .build();
+        assertThat(restClient.download(context.getPath(), target)).isEqualTo(content.length);
+        assertThat(Files.readAllBytes(target)).isEqualTo(content);
+        assertThat(ranges).containsOnly(0, 100_000, 200_000).hasSize(3);
+        assertThat(metrics.meter("net.openright.restclient.RestClient.TestEndpoint.download.resumed").getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldDownloadWholeFileWithoutRangeSupport() throws Exception {
+        byte[] content = randomBytes(100_000);
+        HttpContext context = server.createContext("/downloadWhole", (exchange) -> {
+            exchange.sendResponseHeaders(200, content.length);
+            exchange.getResponseBody().write(content);
+            exchange.close();
+        });
+        restClient = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics)
+                .download(4, 16 * 1024)
+                .build();
+        Path target = Files.createTempDirectory("download").resolve("file.bin");
+        Files.write(target, "old content".getBytes());
+
+        assertThat(restClient.download(context.getPath(), target)).isEqualTo(content.length);
+        assertThat(Files.readAllBytes(target)).isEqualTo(content);
+    }
+
+    @Test
+    public void shouldStreamRangeAndNoStoreRequestsThroughCacheAndCoalescing() throws Exception {
+        HttpContext context = server.createContext("/streamedThrough", (exchange) -> {
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            exchange.sendResponseHeaders(200, 0);
+            IOUtil.copy("content", exchange.getResponseBody());
+        });
+        List<RestResponse> responses = new ArrayList<>();
+        UrlConnectionTransport delegate = new UrlConnectionTransport();
+        RestTransport base = request -> {
+            RestResponse response = delegate.execute(request);
+            responses.add(response);
+            return response;
+        };
+        CachingTransport transport = new CachingTransport(new CoalescingTransport(base, new Meter()), 1024 * 1024, metrics, "streamedThrough");
+        URL url = new URL(restClient.getUrl() + context.getPath());
+
+        for (RequestHeaders headers : Arrays.asList(RequestHeaders.of("Range", "bytes=0-3"), RequestHeaders.of("Cache-Control", "no-cache, no-store"))) {
+            RestResponse response = transport.execute(new RestRequest("GET", url, headers, null));
+            assertThat(response).isSameAs(responses.get(responses.size() - 1));
+            response.getInputStream().close();
+        }
+        assertThat(transport.getTotalBytes()).isEqualTo(0);
+        assertThat(responses).hasSize(2);
+    }
+
+    @Test
+    public void shouldRejectInvalidDownloadSettings() {
+        RestClient.Builder builder = RestClient.builder("TestEndpoint", restClient.getUrl(), metrics);
+        assertThatThrownBy(() -> builder.download(0, 1024))
+                .isInstanceOf(IllegalArgumentException.class).hasMessageContaining("connections");
+        assertThatThrownBy(() -> builder.download(4, 0))
+                .isInstanceOf(IllegalArgumentException.class).hasMessageContaining("chunkBytes");
+        assertThatThrownBy(() -> builder.download(4, -1))
+                .isInstanceOf(IllegalArgumentException.class).hasMessageContaining("chunkBytes");
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private static HttpHandler serveRanges(byte[] content, List<Integer> ranges, IntPredicate failing) {
+        return exchange -> {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            String[] range = exchange.getRequestHeaders().getFirst("Range").substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(range[0]), end = Integer.parseInt(range[1]);
+            if (failing.test(start)) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            ranges.add(start);
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+            exchange.getResponseBody().write(content, start, end - start + 1);
+            exchange.close();
+        };
+    }
+
 }